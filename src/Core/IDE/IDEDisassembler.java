@@ -5,6 +5,11 @@
 
 package Core.IDE;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import TAM.Listing;
+
 /**
  * Just a small class to call the Triangle disassembler.
  *
@@ -28,5 +33,20 @@ public class IDEDisassembler {
 			TAM.Disassembler.main(new String[] {fileName});
 		}).start();
     }
+
+    /**
+     * Returns the listing of a TAM Object file, whose lines are only
+     * disassembled when they are shown.
+     * @param fileName Path to the TAM Object file.
+     * @return The listing, or null if the file cannot be read.
+     */
+    public Listing getListing(String fileName) {
+        try {
+            return Listing.read(Paths.get(fileName));
+        } catch (IOException s) {
+            System.out.println("Error reading object file: " + s);
+            return null;
+        }
+    }
     // </editor-fold>    
 }
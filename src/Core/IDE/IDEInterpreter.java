@@ -5,6 +5,9 @@
 
 package Core.IDE;
 import java.awt.event.ActionListener;
+import TAM.CodeImage;
+import TAM.Interpreter;
+import TAM.TamMachine;
 
 /**
  * Just another small class to call the Triangle interpreter.
@@ -24,18 +27,46 @@ public class IDEInterpreter {
     }
     
     /**
-     * Runs the Interpreter static main method as a separate thread.
+     * Runs a TAM program on a new machine, in a separate thread.
      * @param fileName Path to the TAM Object File.
      */       
     public synchronized void Run(final String fileName) {
+        System.out.println("********** TAM Interpreter (Java Version 2.1) **********");
+        CodeImage image = Interpreter.loadObjectProgram(fileName);
+        if (image == null) {
+            delegate.actionPerformed(null);
+            return;
+        }
+        final TamMachine current = new TamMachine(image);
+        machine = current;
         new Thread(() -> {
-			TAM.Interpreter.main(new String[] {fileName});
-			delegate.actionPerformed(null);
-		}).start();
-    }      
+            current.run();
+            current.showStatus();
+            delegate.actionPerformed(null);
+        }).start();
+    }
+    
+    /**
+     * Cancels the running program, if any. The machine stops shortly
+     * afterwards, but not while it is waiting for input.
+     */
+    public synchronized void Cancel() {
+        if (machine != null) {
+            machine.cancel();
+        }
+    }
+    
+    /**
+     * Tells whether a program is still running.
+     * @return True if the last program started has not stopped yet.
+     */
+    public synchronized boolean isRunning() {
+        return (machine != null) && (machine.getStatus() == TamMachine.RUNNING);
+    }
     // </editor-fold>
     
     // <editor-fold defaultstate="collapsed" desc=" Attributes ">
     private ActionListener delegate;    // Gets triggered when the Interpreter stops.
+    private TamMachine machine;         // The machine running the last program started.
     // </editor-fold>
 }
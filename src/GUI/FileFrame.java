@@ -4,10 +4,13 @@
  */
 
 package GUI;
+import java.awt.FontMetrics;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyAdapter;
 import java.awt.event.MouseListener;
 
+import javax.swing.AbstractListModel;
+import javax.swing.DefaultListModel;
 import javax.swing.JTable;
 import javax.swing.JTree;
 import javax.swing.event.InternalFrameListener;
@@ -17,6 +20,9 @@ import javax.swing.text.Element;
 import javax.swing.text.PlainDocument;
 import javax.swing.tree.DefaultMutableTreeNode;
 
+import TAM.Listing;
+import TAM.Machine;
+
 /**
  * File Frame. Contains the source edition text box, console, ASTs and 
  * everything else in an edition window.
@@ -42,6 +48,13 @@ public class FileFrame extends javax.swing.JInternalFrame {
       enterButton.addActionListener(delegateEnter);
       sourcePane.addMouseListener(delegateMouse);
       previouslyModified = false;        
+
+      // Every line has the same size, so that the list only draws, and the
+      // listing only disassembles, the lines in sight.
+      FontMetrics metrics = tamList.getFontMetrics(tamList.getFont());
+      tamList.setCellRenderer(new TAMCodeRenderer());
+      tamList.setFixedCellHeight(metrics.getHeight() + 1);
+      tamList.setFixedCellWidth(metrics.charWidth('0') * 80);
   }
 
   /**
@@ -125,8 +138,12 @@ public class FileFrame extends javax.swing.JInternalFrame {
       if (className.compareTo("consolePanel") == 0)
           ret = consolePane.getSelectedText();
 
-      if (className.compareTo("tamScroll") == 0)
-          ret = tamPane.getSelectedText();
+      if (className.compareTo("tamScroll") == 0 && !tamList.isSelectionEmpty()) {
+          StringBuilder lines = new StringBuilder();
+          for (Listing.Line line : tamList.getSelectedValuesList())
+              lines.append(line).append('\n');
+          ret = lines.toString();
+      }
 
       return(ret);
   }
@@ -195,18 +212,33 @@ public class FileFrame extends javax.swing.JInternalFrame {
   }
 
   /**
-   * Clears the TAM Code text box.   
+   * Clears the TAM Code list.
    */
   public void clearTAMCode() {
-      tamPane.setText("");
+      tamList.setModel(new DefaultListModel<Listing.Line>());
   }
 
   /**
-   * Writes in the TAM Code text box.
-   * @param text Text to be written.
+   * Shows a program in the TAM Code list. Its lines are only disassembled
+   * when they are scrolled into sight.
+   * @param listing Listing of the program, or null to clear the list.
    */
-  public void writeToTAMCode(String text) {
-      tamPane.setText(tamPane.getText() + text);
+  public void setTAMCode(final Listing listing) {
+      if (listing == null) {
+          clearTAMCode();
+          return;
+      }
+      tamList.setModel(new AbstractListModel<Listing.Line>() {
+          @Override
+          public int getSize() {
+              return(listing.size() - Machine.CB);
+          }
+
+          @Override
+          public Listing.Line getElementAt(int index) {
+              return(listing.getLine(Machine.CB + index));
+          }
+      });
   }
 
   /**
@@ -336,7 +368,7 @@ public class FileFrame extends javax.swing.JInternalFrame {
         interpreterPane = new javax.swing.JEditorPane();
         astScroll = new javax.swing.JScrollPane();
         tamScroll = new javax.swing.JScrollPane();
-        tamPane = new javax.swing.JEditorPane();
+        tamList = new javax.swing.JList<>();
         tableScroll = new javax.swing.JScrollPane();
 
         setClosable(true);
@@ -436,10 +468,9 @@ public class FileFrame extends javax.swing.JInternalFrame {
         tamScroll.setHorizontalScrollBarPolicy(javax.swing.ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
         tamScroll.setName("tamScroll"); // NOI18N
 
-        tamPane.setBorder(javax.swing.BorderFactory.createEtchedBorder());
-        tamPane.setEditable(false);
-        tamPane.setFont(new java.awt.Font("Courier New", 0, 12)); // NOI18N
-        tamScroll.setViewportView(tamPane);
+        tamList.setBorder(javax.swing.BorderFactory.createEtchedBorder());
+        tamList.setFont(new java.awt.Font("Courier New", 0, 12)); // NOI18N
+        tamScroll.setViewportView(tamList);
 
         tabbedPane.addTab("TAM Code", tamScroll);
 
@@ -477,7 +508,7 @@ public class FileFrame extends javax.swing.JInternalFrame {
     private javax.swing.JSplitPane splitPane;
     private javax.swing.JTabbedPane tabbedPane;
     private javax.swing.JScrollPane tableScroll;
-    private javax.swing.JEditorPane tamPane;
+    private javax.swing.JList<Listing.Line> tamList;
     private javax.swing.JScrollPane tamScroll;
     // End of variables declaration//GEN-END:variables
   private JTree astTree;
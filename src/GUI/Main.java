@@ -511,14 +511,19 @@ public class Main extends javax.swing.JFrame {
     // <editor-fold defaultstate="collapsed" desc=" Event Handlers Implementation ">
     
     /**
-     * Handles the "Run TAM Program" button and menu option.
+     * Handles the "Run TAM Program" button and menu option. While a program
+     * is running, the same button and option stop it.
      */
     private void runMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_runMenuItemActionPerformed
+        if (interpreter.isRunning()) {
+            interpreter.Cancel();
+            return;
+        }
         ((FileFrame)desktopPane.getSelectedFrame()).clearConsole();
         ((FileFrame)desktopPane.getSelectedFrame()).selectConsole();
         output.setDelegate(delegateConsole);
-        runMenuItem.setEnabled(false);
-        buttonRun.setEnabled(false);
+        runMenuItem.setText("Stop");
+        buttonRun.setToolTipText("Stop");
         compileMenuItem.setEnabled(false);
         buttonCompile.setEnabled(false);
         interpreter.Run(desktopPane.getSelectedFrame().getTitle().replace(".tri", ".tam"));
@@ -613,8 +618,7 @@ public class Main extends javax.swing.JFrame {
             
             output.setDelegate(delegateConsole);            
             if (compiler.compileProgram(desktopPane.getSelectedFrame().getTitle())) {           
-                output.setDelegate(delegateTAMCode);
-                disassembler.Disassemble(desktopPane.getSelectedFrame().getTitle().replace(".tri", ".tam"));
+                ((FileFrame)desktopPane.getSelectedFrame()).setTAMCode(disassembler.getListing(desktopPane.getSelectedFrame().getTitle().replace(".tri", ".tam")));
                 ((FileFrame)desktopPane.getSelectedFrame()).setTree((DefaultMutableTreeNode)treeVisitor.visitProgram(compiler.getAST(), null));
                 ((FileFrame)desktopPane.getSelectedFrame()).setTable(tableVisitor.getTable(compiler.getAST()));
                 
@@ -795,16 +799,6 @@ public class Main extends javax.swing.JFrame {
         }
     };
     
-    /**
-     * Used to redirect the console output - writes in the "TAM Code" pane.
-     */
-    ActionListener delegateTAMCode = new ActionListener() {
-		@Override
-        public void actionPerformed(ActionEvent e) {
-            while (output.peekQueue())
-                ((FileFrame)desktopPane.getSelectedFrame()).writeToTAMCode(output.readQueue());
-        }
-    };
 	
 	ActionListener delegateDebug = new ActionListener() {
 		@Override
@@ -842,6 +836,8 @@ public class Main extends javax.swing.JFrame {
     ActionListener delegateRun = new ActionListener() {
 		@Override
         public void actionPerformed(ActionEvent e) {
+            runMenuItem.setText("Run");
+            buttonRun.setToolTipText("Run...");
             runMenuItem.setEnabled(true);
             buttonRun.setEnabled(true);
             compileMenuItem.setEnabled(true);
@@ -0,0 +1,42 @@
+/*
+ * IDE-Triangle v1.0
+ * TAMCodeRenderer.java
+ */
+
+package GUI;
+
+import java.awt.Color;
+import java.awt.Component;
+
+import javax.swing.BorderFactory;
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.JList;
+import javax.swing.border.Border;
+
+import TAM.Listing;
+
+/**
+ * Draws a line of the "TAM Code" list: the label of the instruction, if it
+ * has one, the instruction as the disassembler writes it, and the label of
+ * the address it jumps to or calls. A line is drawn above the first
+ * instruction of every routine.
+ */
+class TAMCodeRenderer extends DefaultListCellRenderer {
+
+  // [ Borders ]
+  private final static Border routineBorder = BorderFactory.createMatteBorder(1, 0, 0, 0, Color.GRAY);
+  private final static Border plainBorder = BorderFactory.createEmptyBorder(1, 0, 0, 0);
+
+  @Override
+  public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+      Listing.Line line = (Listing.Line)value;
+      String label = (line.getLabel() != null) ? line.getLabel() + ":" : "";
+      String text = String.format("%-12s %6d:  %s", label, line.getAddress(), line.getText());
+      if (line.getTargetLabel() != null)
+          text = text + "  ; " + line.getTargetLabel();
+
+      super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+      setBorder(line.isRoutineStart() ? routineBorder : plainBorder);
+      return(this);
+  }
+}
@@ -0,0 +1,214 @@
+package TAM;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Runs one TAM object program against every input file in a directory, in
+ * parallel, and checks each output against an expected output.
+ *
+ * <pre>
+ *   java TAM.BatchRunner [options] obj.tam inputs
+ * </pre>
+ *
+ * <p>
+ * The object file is loaded once, and its code image is shared by all the
+ * runs. Each input file gets its own machine and output buffer. The output
+ * of a case is what the interpreter would write for it: the program's
+ * output followed by its status, as written by the interpreter's
+ * <code>-fork</code> option. It is compared with the file of the input's
+ * name with <code>.out</code> added, in the input directory or the one
+ * given by <code>-expected=dir</code>; files ending in <code>.out</code>
+ * are not taken as inputs. For every case the result, the number of
+ * instructions executed and the wall time are reported, and the runner
+ * exits with status 1 if any case failed.
+ * </p>
+ *
+ * <p>
+ * The options are <code>-threads=N</code>, the number of cases run at
+ * once, <code>-output=dir</code>, to write the output of every case to
+ * that directory, and the interpreter's <code>-memory</code>,
+ * <code>-maxinstructions</code>, <code>-timelimit</code>,
+ * <code>-maxoutput</code> and <code>-maxheap</code>.
+ * </p>
+ */
+public final class BatchRunner {
+
+    private final CodeImage image;
+    private final int storeSize;
+    private final Consumer<TamMachine> configuration;
+
+    // The outcome of one case.
+    private static final class Result {
+        String name;
+        String verdict;
+        long instructions;
+        long time;
+        int differingLine;
+    }
+
+    private BatchRunner(CodeImage image, int storeSize, Consumer<TamMachine> configuration) {
+        this.image = image;
+        this.storeSize = storeSize;
+        this.configuration = configuration;
+    }
+
+    // Runs the program with the given input file, checks its output and
+    // writes it to the output directory if there is one.
+    private Result runCase(Path input, Path expectedDirectory, Path outputDirectory) throws IOException {
+        Result result = new Result();
+        result.name = input.getFileName().toString();
+        byte[] in = Files.readAllBytes(input);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buffer);
+
+        long start = System.nanoTime();
+        TamMachine m = new TamMachine(image, new ByteArrayInputStream(in), out, storeSize);
+        configuration.accept(m);
+        m.run();
+        m.showStatus();
+        out.flush();
+        result.time = System.nanoTime() - start;
+        result.instructions = m.getInstructionCount();
+
+        byte[] output = buffer.toByteArray();
+        Path expected = expectedDirectory.resolve(result.name + ".out");
+        if (!Files.isRegularFile(expected)) {
+            result.verdict = "NONE";
+        } else {
+            result.differingLine = differingLine(Files.readAllBytes(expected), output);
+            result.verdict = (result.differingLine == 0) ? "PASS" : "FAIL";
+        }
+        if (outputDirectory != null) {
+            Files.write(outputDirectory.resolve(result.name + ".out"), output);
+        }
+        return result;
+    }
+
+    // Returns the number of the first line where the outputs differ, or 0
+    // if they are the same.
+    private static int differingLine(byte[] expected, byte[] actual) {
+        int mismatch = Arrays.mismatch(expected, actual);
+        if (mismatch < 0) {
+            return 0;
+        }
+        int line = 1;
+        for (int index = 0; index < mismatch; index++) {
+            if (expected[index] == '\n') {
+                line++;
+            }
+        }
+        return line;
+    }
+
+    public static void main(String[] args) {
+        System.out.println("********** TAM Batch Runner (Java Version 2.1) **********");
+
+        String objectName = null, inputName = null, expectedName = null, outputName = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int storeSize = TamMachine.DEFAULTSTORESIZE;
+        long instructionLimit = Long.MAX_VALUE, timeLimit = 0, outputLimit = Long.MAX_VALUE;
+        int heapLimit = Integer.MAX_VALUE;
+
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("-threads=")) {
+                    threads = (int) Interpreter.option(arg, "-threads=", 1, Integer.MAX_VALUE);
+                } else if (arg.startsWith("-expected=")) {
+                    expectedName = arg.substring(10);
+                } else if (arg.startsWith("-output=")) {
+                    outputName = arg.substring(8);
+                } else if (arg.startsWith("-memory=")) {
+                    storeSize = (int) Interpreter.option(arg, "-memory=", 1, TamMachine.MAXSTORESIZE);
+                } else if (arg.startsWith("-maxinstructions=")) {
+                    instructionLimit = Interpreter.option(arg, "-maxinstructions=", 0, Long.MAX_VALUE);
+                } else if (arg.startsWith("-timelimit=")) {
+                    timeLimit = Interpreter.option(arg, "-timelimit=", 0, Long.MAX_VALUE);
+                } else if (arg.startsWith("-maxoutput=")) {
+                    outputLimit = Interpreter.option(arg, "-maxoutput=", 0, Long.MAX_VALUE);
+                } else if (arg.startsWith("-maxheap=")) {
+                    heapLimit = (int) Interpreter.option(arg, "-maxheap=", 0, Integer.MAX_VALUE);
+                } else if (objectName == null) {
+                    objectName = arg;
+                } else {
+                    inputName = arg;
+                }
+            }
+        } catch (IllegalArgumentException s) {
+            System.err.println(s.getMessage());
+            System.err.println("Usage: java TAM.BatchRunner [options] obj.tam inputs");
+            System.exit(2);
+        }
+        if (inputName == null) {
+            System.err.println("Usage: java TAM.BatchRunner [options] obj.tam inputs");
+            System.exit(2);
+        }
+
+        CodeImage image = Interpreter.loadObjectProgram(objectName);
+        if (image == null) {
+            System.exit(2);
+        }
+        final long maxInstructions = instructionLimit, maxTime = timeLimit, maxOutput = outputLimit;
+        final int maxHeap = heapLimit;
+        BatchRunner runner = new BatchRunner(image, storeSize, m -> {
+            m.setInstructionLimit(maxInstructions);
+            m.setTimeLimit(maxTime);
+            m.setOutputLimit(maxOutput);
+            m.setHeapLimit(maxHeap);
+        });
+        Path expectedDirectory = Paths.get((expectedName != null) ? expectedName : inputName);
+        Path outputDirectory = (outputName != null) ? Paths.get(outputName) : null;
+
+        int passed = 0, failed = 0, unchecked = 0;
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Result>> cases = new ArrayList<>();
+            for (Path input : Interpreter.listInputs(inputName)) {
+                cases.add(pool.submit(() -> runner.runCase(input, expectedDirectory, outputDirectory)));
+            }
+            // Reports in the order of the inputs, each case as soon as it
+            // and those before it are done.
+            for (Future<Result> future : cases) {
+                Result result = future.get();
+                String report = String.format("%s %s: %d instructions, %.3f ms", result.verdict,
+                        result.name, result.instructions, result.time / 1e6);
+                switch (result.verdict) {
+                    case "PASS" -> passed++;
+                    case "FAIL" -> {
+                        failed++;
+                        report = report + ", differs at line " + result.differingLine;
+                    }
+                    default -> unchecked++;
+                }
+                System.out.println(report);
+            }
+        } catch (IOException s) {
+            System.err.println("Error running cases: " + s);
+            System.exit(2);
+        } catch (ExecutionException s) {
+            System.err.println("Error running cases: " + s.getCause());
+            System.exit(2);
+        } catch (InterruptedException s) {
+            System.exit(2);
+        } finally {
+            pool.shutdownNow();
+        }
+        System.out.println(String.format("%d passed, %d failed, %d without expected output, in %.3f ms.",
+                passed, failed, unchecked, (System.nanoTime() - start) / 1e6));
+        System.exit((failed > 0) ? 1 : 0);
+    }
+}
@@ -0,0 +1,407 @@
+package TAM;
+
+/**
+ * An alternative execution engine for the TAM, in which every instruction
+ * of a code image is bound once, at load time, to a node that already knows
+ * its operands, the register it addresses and, for calls to primitive
+ * routines, the primitive it invokes.
+ *
+ * <p>
+ * Running the program then just chains the nodes: each node performs its
+ * instruction on the state of a {@link TamMachine} and returns
+ * the address of the next instruction. The opcode switch, the register
+ * switch of <code>TamMachine.content</code> and the primitive switch of
+ * <code>TamMachine.callPrimitive</code> are only evaluated while binding.
+ * Instructions whose register can only be resolved at run-time (the
+ * pseudo-registers L1..L6) still go through <code>content</code>.
+ * The CP register is only written back when the run stops.
+ * </p>
+ *
+ * <p>
+ * The nodes hold no machine state, so one bound program can run on any
+ * number of machines at once.
+ * </p>
+ */
+public final class BoundCode {
+
+    /**
+     * A bound instruction.
+     */
+    interface Node {
+
+        /**
+         * Executes the instruction.
+         * @param m	the machine to execute it on.
+         * @return the address of the next instruction to execute.
+         */
+        int execute(TamMachine m);
+    }
+
+    private final Node[] nodes;
+
+    /**
+     * Binds every instruction of the given code image to a node.
+     * @param image	the code image to bind.
+     */
+    public BoundCode(CodeImage image) {
+        nodes = new Node[image.size];
+        for (int addr = Machine.CB; addr < image.size; addr++) {
+            long word = image.words[addr];
+            nodes[addr] = bind(addr, CodeImage.op(word), CodeImage.r(word),
+                    CodeImage.n(word), CodeImage.d(word));
+        }
+    }
+
+    /**
+     * Runs the bound program from CB until it halts or fails, leaving the
+     * final machine state in the given machine.
+     * @param m	the machine to run on, loaded with the same code image.
+     */
+    public void run(TamMachine m) {
+        final Node[] nodes = this.nodes;
+        int cp = Machine.CB;
+
+        m.initializeRegisters();
+        do {
+            if ((--m.fuel < 0) && !m.refuel(cp)) {
+                break;
+            }
+            cp = nodes[cp].execute(m);
+            if ((cp < Machine.CB) || (cp >= nodes.length)) {
+                m.status = TamMachine.FAILEDINVALIDCODEADDRESS;
+            }
+        } while (m.status == TamMachine.RUNNING);
+        m.CP = cp;
+        m.flushOutput();
+    }
+
+    // BINDING
+
+    // Returns true if register r holds the same value for every run on
+    // every machine, so that d + content(r) can be folded at bind time.
+    private static boolean isConstantRegister(int r) {
+        return switch (r) {
+            case Machine.CBr, Machine.PBr, Machine.PTr, Machine.SBr -> true;
+            default -> false;
+        };
+    }
+
+    private static int constantRegister(int r) {
+        return switch (r) {
+            case Machine.CBr -> TamMachine.CB;
+            case Machine.PBr -> Machine.PB;
+            case Machine.PTr -> Machine.PT;
+            case Machine.SBr -> TamMachine.SB;
+            default -> 0;
+        };
+    }
+
+    private static Node bind(int addr, int op, int r, int n, int d) {
+        final int next = addr + 1;
+
+        switch (op) {
+            case Machine.LOADop:
+                return bindLoad(next, r, n, d);
+            case Machine.LOADAop:
+                if (isConstantRegister(r)) {
+                    final int a = d + constantRegister(r);
+                    return m -> {
+                        m.checkSpace(1);
+                        m.data[m.ST++] = a;
+                        return next;
+                    };
+                }
+                return m -> {
+                    int a = d + m.content(r);
+                    m.checkSpace(1);
+                    m.data[m.ST++] = a;
+                    return next;
+                };
+            case Machine.LOADIop:
+                return m -> {
+                    int a = m.data[--m.ST];
+                    m.checkSpace(n);
+                    copy(m, a, m.ST, n);
+                    m.ST += n;
+                    return next;
+                };
+            case Machine.LOADLop:
+                return m -> {
+                    m.checkSpace(1);
+                    m.data[m.ST++] = d;
+                    return next;
+                };
+            case Machine.STOREop:
+                return bindStore(next, r, n, d);
+            case Machine.STOREIop:
+                return m -> {
+                    int a = m.data[--m.ST];
+                    m.ST -= n;
+                    copy(m, m.ST, a, n);
+                    return next;
+                };
+            case Machine.CALLop:
+                if (isConstantRegister(r)) {
+                    int target = d + constantRegister(r);
+                    if (target >= Machine.PB) {
+                        return bindPrimitive(next, target - Machine.PB);
+                    }
+                    return bindCall(next, n, target);
+                }
+                return m -> {
+                    int target = d + m.content(r);
+                    if (target >= Machine.PB) {
+                        m.callPrimitive(target - Machine.PB);
+                        return next;
+                    }
+                    return call(m, next, n, target);
+                };
+            case Machine.CALLIop:
+                return m -> {
+                    m.ST -= 2;
+                    int target = m.data[m.ST + 1];
+                    if (target >= Machine.PB) {
+                        m.callPrimitive(target - Machine.PB);
+                        return next;
+                    }
+                    // data[ST] = static link already
+                    m.enterFrame(-1, m.data[m.ST]);
+                    m.data[m.ST + 1] = m.LB;
+                    m.data[m.ST + 2] = next;
+                    m.LB = m.ST;
+                    m.ST += 3;
+                    return target;
+                };
+            case Machine.RETURNop:
+                return m -> {
+                    int a = m.LB - d;
+                    int ra = m.data[m.LB + 2];
+                    m.LB = m.data[m.LB + 1];
+                    m.leaveFrame();
+                    copy(m, m.ST - n, a, n);
+                    m.ST = a + n;
+                    return ra;
+                };
+            case Machine.PUSHop:
+                return m -> {
+                    m.checkSpace(d);
+                    m.ST += d;
+                    return next;
+                };
+            case Machine.POPop:
+                return m -> {
+                    int a = m.ST - n - d;
+                    copy(m, m.ST - n, a, n);
+                    m.ST = a + n;
+                    return next;
+                };
+            case Machine.JUMPop:
+                if (isConstantRegister(r)) {
+                    final int target = d + constantRegister(r);
+                    return m -> target;
+                }
+                return m -> d + m.content(r);
+            case Machine.JUMPIop:
+                return m -> m.data[--m.ST];
+            case Machine.JUMPIFop:
+                if (isConstantRegister(r)) {
+                    final int target = d + constantRegister(r);
+                    return m -> (m.data[--m.ST] == n) ? target : next;
+                }
+                return m -> (m.data[--m.ST] == n)
+                        ? d + m.content(r) : next;
+            case Machine.HALTop:
+                return m -> {
+                    m.status = TamMachine.HALTED;
+                    return addr;
+                };
+            default:
+                return m -> {
+                    m.status = TamMachine.FAILEDINVALIDINSTRUCTION;
+                    return addr;
+                };
+        }
+    }
+
+    private static Node bindLoad(int next, int r, int n, int d) {
+        if (r == Machine.LBr) {
+            if (n == 1) {
+                return m -> {
+                    m.checkSpace(1);
+                    m.data[m.ST] = m.data[d + m.LB];
+                    m.ST++;
+                    return next;
+                };
+            }
+            return m -> {
+                m.checkSpace(n);
+                copy(m, d + m.LB, m.ST, n);
+                m.ST += n;
+                return next;
+            };
+        } else if (r == Machine.STr) {
+            return m -> {
+                int a = d + m.ST;
+                m.checkSpace(n);
+                copy(m, a, m.ST, n);
+                m.ST += n;
+                return next;
+            };
+        } else if (isConstantRegister(r)) {
+            final int a = d + constantRegister(r);
+            if (n == 1) {
+                return m -> {
+                    m.checkSpace(1);
+                    m.data[m.ST] = m.data[a];
+                    m.ST++;
+                    return next;
+                };
+            }
+            return m -> {
+                m.checkSpace(n);
+                copy(m, a, m.ST, n);
+                m.ST += n;
+                return next;
+            };
+        }
+        return m -> {
+            int a = d + m.content(r);
+            m.checkSpace(n);
+            copy(m, a, m.ST, n);
+            m.ST += n;
+            return next;
+        };
+    }
+
+    private static Node bindStore(int next, int r, int n, int d) {
+        if (r == Machine.LBr) {
+            return m -> {
+                m.ST -= n;
+                copy(m, m.ST, d + m.LB, n);
+                return next;
+            };
+        } else if (isConstantRegister(r)) {
+            final int a = d + constantRegister(r);
+            if (n == 1) {
+                return m -> {
+                    m.data[a] = m.data[--m.ST];
+                    return next;
+                };
+            }
+            return m -> {
+                m.ST -= n;
+                copy(m, m.ST, a, n);
+                return next;
+            };
+        }
+        return m -> {
+            int a = d + m.content(r);
+            m.ST -= n;
+            copy(m, m.ST, a, n);
+            return next;
+        };
+    }
+
+    private static Node bindCall(int next, int n, int target) {
+        return m -> call(m, next, n, target);
+    }
+
+    private static int call(TamMachine m, int next, int n, int target) {
+        m.checkSpace(3);
+        if ((0 <= n) && (n <= 15)) {
+            m.data[m.ST] = m.content(n); // static link
+        } else {
+            m.status = TamMachine.FAILEDINVALIDINSTRUCTION;
+        }
+        m.enterFrame(n, m.data[m.ST]);
+        m.data[m.ST + 1] = m.LB; // dynamic link
+        m.data[m.ST + 2] = next; // return address
+        m.LB = m.ST;
+        m.ST += 3;
+        return target;
+    }
+
+    private static Node bindPrimitive(int next, int displacement) {
+        switch (displacement) {
+            case Machine.idDisplacement:
+                return m -> next;
+            case Machine.notDisplacement:
+                return m -> {
+                    int[] data = m.data;
+                    data[m.ST - 1] = TamMachine.toInt(!TamMachine.isTrue(data[m.ST - 1]));
+                    return next;
+                };
+            case Machine.succDisplacement:
+                return m -> {
+                    int[] data = m.data;
+                    data[m.ST - 1] = m.overflowChecked(data[m.ST - 1] + 1);
+                    return next;
+                };
+            case Machine.predDisplacement:
+                return m -> {
+                    int[] data = m.data;
+                    data[m.ST - 1] = m.overflowChecked(data[m.ST - 1] - 1);
+                    return next;
+                };
+            case Machine.addDisplacement:
+                return m -> {
+                    int[] data = m.data;
+                    int st = --m.ST;
+                    data[st - 1] = m.overflowChecked((long) data[st - 1] + data[st]);
+                    return next;
+                };
+            case Machine.subDisplacement:
+                return m -> {
+                    int[] data = m.data;
+                    int st = --m.ST;
+                    data[st - 1] = m.overflowChecked((long) data[st - 1] - data[st]);
+                    return next;
+                };
+            case Machine.multDisplacement:
+                return m -> {
+                    int[] data = m.data;
+                    int st = --m.ST;
+                    data[st - 1] = m.overflowChecked((long) data[st - 1] * data[st]);
+                    return next;
+                };
+            case Machine.ltDisplacement:
+                return m -> {
+                    int[] data = m.data;
+                    int st = --m.ST;
+                    data[st - 1] = TamMachine.toInt(data[st - 1] < data[st]);
+                    return next;
+                };
+            case Machine.leDisplacement:
+                return m -> {
+                    int[] data = m.data;
+                    int st = --m.ST;
+                    data[st - 1] = TamMachine.toInt(data[st - 1] <= data[st]);
+                    return next;
+                };
+            case Machine.geDisplacement:
+                return m -> {
+                    int[] data = m.data;
+                    int st = --m.ST;
+                    data[st - 1] = TamMachine.toInt(data[st - 1] >= data[st]);
+                    return next;
+                };
+            case Machine.gtDisplacement:
+                return m -> {
+                    int[] data = m.data;
+                    int st = --m.ST;
+                    data[st - 1] = TamMachine.toInt(data[st - 1] > data[st]);
+                    return next;
+                };
+            default:
+                return m -> {
+                    m.callPrimitive(displacement);
+                    return next;
+                };
+        }
+    }
+
+    // Copies n words of the data store from address from to address to.
+    private static void copy(TamMachine m, int from, int to, int n) {
+        System.arraycopy(m.data, from, m.data, to, n);
+    }
+}
@@ -0,0 +1,120 @@
+package TAM;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+/**
+ * The default {@link IOChannel}, reading and writing bytes through large
+ * buffers over a pair of streams.
+ *
+ * <p>
+ * Characters below 128 are written as single bytes. Others are written
+ * through the print stream, after the buffered output, so they are
+ * encoded in the stream's own charset as the interpreter always has.
+ * Integers are formatted straight into the output buffer, so no call
+ * creates any Java objects. Input is read one byte per character, as the
+ * interpreter always has.
+ * </p>
+ */
+public final class BufferedIOChannel implements IOChannel {
+
+    private final static int BUFFERSIZE = 8192;
+
+    private final static byte[] EOL = System.lineSeparator().getBytes();
+
+    private final InputStream in;
+    private final PrintStream out;
+
+    private final byte[] input = new byte[BUFFERSIZE];
+    private int inputPos, inputEnd;
+
+    private final byte[] output = new byte[BUFFERSIZE];
+    private int outputPos;
+
+    /**
+     * Creates a channel over the given streams.
+     * @param in	the stream to read from.
+     * @param out	the stream to write to.
+     */
+    public BufferedIOChannel(InputStream in, PrintStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (inputPos == inputEnd) {
+            // Only read what is available, so that an interactive program
+            // is not held up waiting for a full buffer.
+            int length = Math.max(1, Math.min(in.available(), BUFFERSIZE));
+            int count = in.read(input, 0, length);
+            if (count <= 0) {
+                return -1;
+            }
+            inputPos = 0;
+            inputEnd = count;
+        }
+        return input[inputPos++] & 0xFF;
+    }
+
+    @Override
+    public void put(char ch) throws IOException {
+        if (ch < 0x80) {
+            if (outputPos == BUFFERSIZE) {
+                flushBuffer();
+            }
+            output[outputPos++] = (byte) ch;
+        } else {
+            flushBuffer();
+            out.print(ch);
+        }
+    }
+
+    @Override
+    public void putInt(int value) throws IOException {
+        // At most ten digits and a sign
+        if (outputPos + 11 > BUFFERSIZE) {
+            flushBuffer();
+        }
+        long remaining = value;
+        if (remaining < 0) {
+            output[outputPos++] = '-';
+            remaining = -remaining;
+        }
+        int start = outputPos;
+        do {
+            output[outputPos++] = (byte) ('0' + (remaining % 10));
+            remaining = remaining / 10;
+        } while (remaining != 0);
+        // The digits were written least significant first.
+        for (int low = start, high = outputPos - 1; low < high; low++, high--) {
+            byte digit = output[low];
+            output[low] = output[high];
+            output[high] = digit;
+        }
+    }
+
+    @Override
+    public void putEol() throws IOException {
+        if (outputPos + EOL.length > BUFFERSIZE) {
+            flushBuffer();
+        }
+        for (byte b : EOL) {
+            output[outputPos++] = b;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (outputPos > 0) {
+            out.write(output, 0, outputPos);
+            outputPos = 0;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package TAM;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * The complete state of a TAM run at an instruction boundary, from which
+ * the run can be resumed by {@link TamMachine#resume(Checkpoint)}, in the
+ * same JVM or, through a checkpoint file, in another one.
+ *
+ * <p>
+ * A checkpoint holds the registers, the stack SB..ST-1 and the heap
+ * HT..HB-1 of the data store, the heap's free blocks, the number of
+ * instructions executed and characters read and written, and the checksum
+ * of the code image, so that it is only resumed with the program it was
+ * taken from. The display is not saved, as the machine rebuilds it from
+ * the static links as it needs it.
+ * </p>
+ *
+ * <p>
+ * A checkpoint file starts with the four bytes <code>TAMC</code> and a
+ * format version, followed by big-endian integers. It is written to a
+ * temporary file that then replaces the checkpoint file, so a crash while
+ * writing leaves the previous checkpoint intact.
+ * </p>
+ */
+public final class Checkpoint {
+
+    private final static int MAGIC = 0x54414D43; // "TAMC"
+    private final static int VERSION = 1;
+
+    private final long codeChecksum;
+    private final int storeSize;
+    private final int CP, ST, LB, HT, currentChar;
+    private final long executed, inputPosition, outputCount;
+    private final int[] stack, heap, heapBlocks;
+
+    // Takes a checkpoint of the given machine, stopped before the
+    // instruction at CP, after executing the given number of instructions.
+    Checkpoint(TamMachine m, long executed) {
+        this.codeChecksum = m.image.checksum();
+        this.storeSize = m.HB;
+        this.CP = m.CP;
+        this.ST = m.ST;
+        this.LB = m.LB;
+        this.HT = m.HT;
+        this.currentChar = m.currentChar;
+        this.executed = executed;
+        this.inputPosition = m.inputPosition;
+        this.outputCount = m.outputCount;
+        this.stack = Arrays.copyOfRange(m.data, TamMachine.SB, m.ST);
+        this.heap = Arrays.copyOfRange(m.data, m.HT, m.HB);
+        this.heapBlocks = m.heap.blocks();
+    }
+
+    private Checkpoint(DataInputStream in) throws IOException {
+        if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+            throw new IOException("Not a TAM checkpoint of version " + VERSION);
+        }
+        codeChecksum = in.readLong();
+        storeSize = in.readInt();
+        CP = in.readInt();
+        ST = in.readInt();
+        LB = in.readInt();
+        HT = in.readInt();
+        currentChar = in.readInt();
+        executed = in.readLong();
+        inputPosition = in.readLong();
+        outputCount = in.readLong();
+        if ((storeSize < 1) || (storeSize > TamMachine.MAXSTORESIZE)
+                || (ST < TamMachine.SB) || (HT < ST) || (HT > storeSize)) {
+            throw new IOException("Corrupt TAM checkpoint");
+        }
+        stack = readWords(in, ST - TamMachine.SB);
+        heap = readWords(in, storeSize - HT);
+        heapBlocks = readWords(in, in.readInt());
+    }
+
+    private static int[] readWords(DataInputStream in, int count) throws IOException {
+        if ((count < 0) || (count > TamMachine.MAXSTORESIZE * 2)) {
+            throw new IOException("Corrupt TAM checkpoint");
+        }
+        int[] words = new int[count];
+        for (int index = 0; index < count; index++) {
+            words[index] = in.readInt();
+        }
+        return words;
+    }
+
+    private static void writeWords(DataOutputStream out, int[] words) throws IOException {
+        for (int word : words) {
+            out.writeInt(word);
+        }
+    }
+
+    /**
+     * Reads a checkpoint from the named file.
+     * @param fileName	the name of the checkpoint file.
+     * @return the checkpoint.
+     * @throws IOException if the file cannot be read or is not a
+     *         checkpoint.
+     */
+    public static Checkpoint read(String fileName) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)))) {
+            return new Checkpoint(in);
+        }
+    }
+
+    /**
+     * Writes the checkpoint to the named file, replacing it only once the
+     * whole checkpoint has been written.
+     * @param fileName	the name of the checkpoint file.
+     * @throws IOException if the file cannot be written.
+     */
+    public void write(String fileName) throws IOException {
+        Path target = Paths.get(fileName).toAbsolutePath();
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temporary.toFile())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(codeChecksum);
+            out.writeInt(storeSize);
+            out.writeInt(CP);
+            out.writeInt(ST);
+            out.writeInt(LB);
+            out.writeInt(HT);
+            out.writeInt(currentChar);
+            out.writeLong(executed);
+            out.writeLong(inputPosition);
+            out.writeLong(outputCount);
+            writeWords(out, stack);
+            writeWords(out, heap);
+            out.writeInt(heapBlocks.length);
+            writeWords(out, heapBlocks);
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the data store size of the machine the checkpoint was taken
+     * from, which a machine must have to resume it.
+     */
+    public int getStoreSize() {
+        return storeSize;
+    }
+
+    /**
+     * Returns the number of instructions the run had executed when the
+     * checkpoint was taken.
+     */
+    public long getInstructions() {
+        return executed;
+    }
+
+    // Puts the machine back in the saved state, ready to continue the run,
+    // or fails it with FAILEDIOERROR if the input cannot be brought back to
+    // its saved position.
+    void restore(TamMachine m) {
+        if (m.image.checksum() != codeChecksum) {
+            throw new IllegalArgumentException("The checkpoint was taken from another program");
+        }
+        if (m.HB != storeSize) {
+            throw new IllegalArgumentException("The checkpoint needs a data store of "
+                    + storeSize + " words");
+        }
+        System.arraycopy(stack, 0, m.data, TamMachine.SB, stack.length);
+        System.arraycopy(heap, 0, m.data, HT, heap.length);
+        m.CP = CP;
+        m.ST = ST;
+        m.LB = LB;
+        m.HT = HT;
+        m.status = TamMachine.RUNNING;
+        m.resetDisplay();
+        m.heap.restore(heapBlocks);
+        m.startRun(executed, outputCount);
+        try {
+            m.skipInput(inputPosition);
+        } catch (IOException s) {
+            m.status = TamMachine.FAILEDIOERROR;
+        }
+        m.currentChar = currentChar;
+    }
+}
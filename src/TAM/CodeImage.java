@@ -0,0 +1,111 @@
+package TAM;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+/**
+ * A decoded, read-only image of the code store.
+ *
+ * <p>
+ * Each instruction is packed into a single <code>long</code>, so the
+ * interpreter fetches one primitive word per step instead of following a
+ * reference to an {@link Instruction} object and reading its four fields.
+ * The layout of a packed instruction is:
+ * </p>
+ * <pre>
+ *   bits 56..63  op  (OpCode)
+ *   bits 48..55  r   (RegisterNumber)
+ *   bits 32..47  n   (Length)
+ *   bits  0..31  d   (Operand)
+ * </pre>
+ */
+public final class CodeImage {
+
+    final long[] words;
+    final int size;
+
+    /**
+     * Decodes the instructions code[CB..count-1] into a new image.
+     * @param code	the code store to decode.
+     * @param count	the address one past the last instruction (CT).
+     */
+    public CodeImage(Instruction[] code, int count) {
+        words = new long[count];
+        for (int addr = Machine.CB; addr < count; addr++) {
+            Instruction instr = code[addr];
+            words[addr] = pack(instr.op, instr.r, instr.n, instr.d);
+        }
+        size = count;
+    }
+
+    // Wraps already packed instructions, words[CB..words.length-1].
+    CodeImage(long[] words) {
+        this.words = words;
+        this.size = words.length;
+    }
+
+    /**
+     * Loads the code of an object file, in either format, into a new
+     * image, linked with the libraries it uses, which are found relative to
+     * the directory of the object file.
+     * @param file	the object file.
+     * @return the image, of no instructions if the file is empty.
+     * @throws IOException if the file or a library cannot be read, is
+     *         corrupt, or does not fit in the code store, if a library
+     *         does not match the program, or if the file is itself a
+     *         library, which cannot be run.
+     * @see ObjectFile#read
+     * @see ObjectFile#link
+     */
+    public static CodeImage read(Path file) throws IOException {
+        ObjectFile object = ObjectFile.read(file);
+        if (object.isLibrary()) {
+            throw new IOException(file + " is a TAM library, not a program; link a program with it instead");
+        }
+        return object.link(file.toAbsolutePath().getParent()).getImage();
+    }
+
+    /**
+     * Returns the number of instructions in the image.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the CRC-32 checksum of the packed instructions, which
+     * identifies the program a checkpoint was taken from.
+     */
+    public long checksum() {
+        ByteBuffer bytes = ByteBuffer.allocate(8 * size);
+        bytes.asLongBuffer().put(words, 0, size);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    static long pack(int op, int r, int n, int d) {
+        return ((long) (op & 0xFF) << 56)
+                | ((long) (r & 0xFF) << 48)
+                | ((long) (n & 0xFFFF) << 32)
+                | (d & 0xFFFFFFFFL);
+    }
+
+    static int op(long word) {
+        return (int) (word >>> 56);
+    }
+
+    static int r(long word) {
+        return (int) (word >>> 48) & 0xFF;
+    }
+
+    static int n(long word) {
+        return (int) (word >>> 32) & 0xFFFF;
+    }
+
+    static int d(long word) {
+        return (int) word;
+    }
+}
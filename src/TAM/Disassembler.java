@@ -14,14 +14,14 @@
 
 package TAM;
 
-import java.io.DataInputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
 
 /**
  * Disassembles the TAM code in the given file, and displays the
- * instructions on standard output.
+ * instructions on standard output. The instructions are taken from a
+ * {@link Listing} of the program, which programs can use directly.
  *
  * For example:
  * <pre>
@@ -41,292 +41,324 @@ public class Disassembler {
 
   static int CT;
 
+  static Listing listing;
+
   /**
    * Writes the r-field of an instruction in the form "l<I>reg</I>r", where
    * l and r are the bracket characters to use.
+   * @param out			the text to append to.
    * @param leftbracket		the character to print before the register.
    * @param r			the number of the register.
    * @param rightbracket 	the character to print after the register.
    */
-  private static void writeR (char leftbracket, int r, char rightbracket) {
+  private static void writeR (StringBuilder out, char leftbracket, int r, char rightbracket) {
 
-    System.out.print(leftbracket);
+    out.append(leftbracket);
     switch (r) {
       case Machine.CBr:
-        System.out.print ("CB");
+        out.append("CB");
         break;
       case Machine.CTr:
-	System.out.print ("CT");
+	out.append("CT");
 	break;
       case Machine.PBr:
-	System.out.print ("PB");
+	out.append("PB");
 	break;
       case Machine.PTr:
-	System.out.print ("PT");
+	out.append("PT");
 	break;
       case Machine.SBr:
-	System.out.print ("SB");
+	out.append("SB");
 	break;
       case Machine.STr:
-	System.out.print ("ST");
+	out.append("ST");
 	break;
       case Machine.HBr:
-	System.out.print ("HB");
+	out.append("HB");
 	break;
       case Machine.HTr:
-	System.out.print ("HT");
+	out.append("HT");
 	break;
       case Machine.LBr:
-	System.out.print ("LB");
+	out.append("LB");
 	break;
       case Machine.L1r:
-	System.out.print ("L1");
+	out.append("L1");
 	break;
       case Machine.L2r:
-	System.out.print ("L2");
+	out.append("L2");
 	break;
       case Machine.L3r:
-	System.out.print ("L3");
+	out.append("L3");
 	break;
       case Machine.L4r:
-	System.out.print ("L4");
+	out.append("L4");
 	break;
       case Machine.L5r:
-	System.out.print ("L5");
+	out.append("L5");
 	break;
       case Machine.L6r:
-	System.out.print ("L6");
+	out.append("L6");
 	break;
       case Machine.CPr:
-	System.out.print ("CP");
+	out.append("CP");
 	break;
     }
-    System.out.print (rightbracket);
+    out.append(rightbracket);
   }
 
   /**
    * Writes a void n-field of an instruction.
+   * @param out	the text to append to.
    */
-  private static void blankN() {
-    System.out.print ("      ");
+  private static void blankN(StringBuilder out) {
+    out.append("      ");
   }
 
   // Writes the n-field of an instruction.
   /**
    * Writes the n-field of an instruction in the form "(n)".
+   * @param out	the text to append to.
    * @param n	the integer to write.
    */
-  private static void writeN (int n) {
-    System.out.print ("(" + n + ") ");
+  private static void writeN (StringBuilder out, int n) {
+    out.append("(" + n + ") ");
     if (n < 10)
-      System.out.print ("  ");
+      out.append("  ");
     else if (n < 100)
-      System.out.print (" ");
+      out.append(" ");
   }
 
   /**
    * Writes the d-field of an instruction.
+   * @param out	the text to append to.
    * @param d	the integer to write.
    */
-  private static void writeD (int d) {
-    System.out.print (d);
+  private static void writeD (StringBuilder out, int d) {
+    out.append(d);
   }
 
   /**
    * Writes the name of primitive routine with relative address d.
+   * @param out	the text to append to.
+   * @param d	the displacment of the primitive routine.
+   */
+  private static void writePrimitive (StringBuilder out, int d) {
+    out.append(String.format("%-8s", primitiveName(d)));
+  }
+
+  /**
+   * Returns the name of primitive routine with relative address d.
    * @param d	the displacment of the primitive routine.
+   * @return the name of the primitive routine, or an empty string.
    */
-  private static void writePrimitive (int d) {
+  static String primitiveName (int d) {
     switch (d) {
       case Machine.idDisplacement:
-        System.out.print ("id      ");
-	break;
+        return "id";
       case Machine.notDisplacement:
-	System.out.print ("not     ");
-	break;
+        return "not";
       case Machine.andDisplacement:
-	System.out.print ("and     ");
-	break;
+        return "and";
       case Machine.orDisplacement:
-	System.out.print ("or      ");
-	break;
+        return "or";
       case Machine.succDisplacement:
-	System.out.print ("succ    ");
-	break;
+        return "succ";
       case Machine.predDisplacement:
-	System.out.print ("pred    ");
-	break;
+        return "pred";
       case Machine.negDisplacement:
-	System.out.print ("neg     ");
-	break;
+        return "neg";
       case Machine.addDisplacement:
-	System.out.print ("add     ");
-	break;
+        return "add";
       case Machine.subDisplacement:
-	System.out.print ("sub     ");
-	break;
+        return "sub";
       case Machine.multDisplacement:
-	System.out.print ("mult    ");
-	break;
+        return "mult";
       case Machine.divDisplacement:
-	System.out.print ("div     ");
-	break;
+        return "div";
       case Machine.modDisplacement:
-	System.out.print ("mod     ");
-	break;
+        return "mod";
       case Machine.ltDisplacement:
-	System.out.print ("lt      ");
-	break;
+        return "lt";
       case Machine.leDisplacement:
-	System.out.print ("le      ");
-	break;
+        return "le";
       case Machine.geDisplacement:
-	System.out.print ("ge      ");
-	break;
+        return "ge";
       case Machine.gtDisplacement:
-	System.out.print ("gt      ");
-	break;
+        return "gt";
       case Machine.eqDisplacement:
-	System.out.print ("eq      ");
-	break;
+        return "eq";
       case Machine.neDisplacement:
-	System.out.print ("ne      ");
-	break;
+        return "ne";
       case Machine.eolDisplacement:
-	System.out.print ("eol     ");
-	break;
+        return "eol";
       case Machine.eofDisplacement:
-	System.out.print ("eof     ");
-	break;
+        return "eof";
       case Machine.getDisplacement:
-	System.out.print ("get     ");
-	break;
+        return "get";
       case Machine.putDisplacement:
-	System.out.print ("put     ");
-	break;
+        return "put";
       case Machine.geteolDisplacement:
-	System.out.print ("geteol  ");
-	break;
+        return "geteol";
       case Machine.puteolDisplacement:
-	System.out.print ("puteol  ");
-	break;
+        return "puteol";
       case Machine.getintDisplacement:
-	System.out.print ("getint  ");
-	break;
+        return "getint";
       case Machine.putintDisplacement:
-	System.out.print ("putint  ");
-	break;
+        return "putint";
       case Machine.newDisplacement:
-	System.out.print ("new     ");
-	break;
+        return "new";
       case Machine.disposeDisplacement:
-	System.out.print ("dispose ");
-	break;
+        return "dispose";
       case Machine.indexCheckDisplacement:
-  System.out.print("indexCheck");
-  break;
+        return "indexCheck";
+      default:
+        return "";
+    }
+  }
+
+  /**
+   * Returns the mnemonic of the given operation code.
+   * @param op	the operation code.
+   * @return the mnemonic, or an empty string for an unknown operation code.
+   */
+  static String mnemonic (int op) {
+    switch (op) {
+      case Machine.LOADop:
+        return "LOAD";
+      case Machine.LOADAop:
+        return "LOADA";
+      case Machine.LOADIop:
+        return "LOADI";
+      case Machine.LOADLop:
+        return "LOADL";
+      case Machine.STOREop:
+        return "STORE";
+      case Machine.STOREIop:
+        return "STOREI";
+      case Machine.CALLop:
+        return "CALL";
+      case Machine.CALLIop:
+        return "CALLI";
+      case Machine.RETURNop:
+        return "RETURN";
+      case Machine.PUSHop:
+        return "PUSH";
+      case Machine.POPop:
+        return "POP";
+      case Machine.JUMPop:
+        return "JUMP";
+      case Machine.JUMPIop:
+        return "JUMPI";
+      case Machine.JUMPIFop:
+        return "JUMPIF";
+      case Machine.HALTop:
+        return "HALT";
+      default:
+        return "";
     }
   }
 
   /**
    * Writes the given instruction in assembly-code format.
+   * @param out	the text to append to.
    * @param instr	the instruction to display.
    */
-  private static void writeInstruction (Instruction instr) {
+  static void writeInstruction (StringBuilder out, Instruction instr) {
 
     switch (instr.op) {
       case Machine.LOADop:
-	System.out.print ("LOAD  ");
-	writeN(instr.n);
-	writeD(instr.d);
-	writeR('[', instr.r, ']');
+	out.append("LOAD  ");
+	writeN(out, instr.n);
+	writeD(out, instr.d);
+	writeR(out, '[', instr.r, ']');
 	break;
 
       case Machine.LOADAop:
-        System.out.print ("LOADA ");
-        blankN();
-        writeD(instr.d);
-        writeR('[', instr.r, ']');
+        out.append("LOADA ");
+        blankN(out);
+        writeD(out, instr.d);
+        writeR(out, '[', instr.r, ']');
         break;
 
       case Machine.LOADIop:
-        System.out.print ("LOADI ");
-        writeN(instr.n);
+        out.append("LOADI ");
+        writeN(out, instr.n);
         break;
 
       case Machine.LOADLop:
-        System.out.print ("LOADL ");
-        blankN();
-        writeD(instr.d);
+        out.append("LOADL ");
+        blankN(out);
+        writeD(out, instr.d);
         break;
 
       case Machine.STOREop:
-        System.out.print ("STORE ");
-        writeN(instr.n);
-        writeD(instr.d);
-        writeR('[', instr.r, ']');
+        out.append("STORE ");
+        writeN(out, instr.n);
+        writeD(out, instr.d);
+        writeR(out, '[', instr.r, ']');
         break;
 
       case Machine.STOREIop:
-        System.out.print ("STOREI");
-        writeN(instr.n);
+        out.append("STOREI");
+        writeN(out, instr.n);
         break;
 
       case Machine.CALLop:
-        System.out.print ("CALL  ");
+        out.append("CALL  ");
         if (instr.r == Machine.PBr) {
-          blankN();
-          writePrimitive(instr.d);
+          blankN(out);
+          writePrimitive(out, instr.d);
         } else {
-          writeR('(', instr.n, ')');
-          System.out.print ("  ");
-          writeD(instr.d);
-          writeR('[', instr.r, ']');
+          writeR(out, '(', instr.n, ')');
+          out.append("  ");
+          writeD(out, instr.d);
+          writeR(out, '[', instr.r, ']');
         }
         break;
 
       case Machine.CALLIop:
-        System.out.print ("CALLI ");
+        out.append("CALLI ");
 	break;
 
       case Machine.RETURNop:
-        System.out.print ("RETURN");
-        writeN(instr.n);
-        writeD(instr.d);
+        out.append("RETURN");
+        writeN(out, instr.n);
+        writeD(out, instr.d);
         break;
 
       case Machine.PUSHop:
-        System.out.print ("PUSH  ");
-        blankN();
-        writeD(instr.d);
+        out.append("PUSH  ");
+        blankN(out);
+        writeD(out, instr.d);
         break;
 
       case Machine.POPop:
-        System.out.print ("POP   ");
-        writeN(instr.n);
-        writeD(instr.d);
+        out.append("POP   ");
+        writeN(out, instr.n);
+        writeD(out, instr.d);
         break;
 
       case Machine.JUMPop:
-        System.out.print ("JUMP  ");
-        blankN();
-        writeD(instr.d);
-        writeR('[', instr.r, ']');
+        out.append("JUMP  ");
+        blankN(out);
+        writeD(out, instr.d);
+        writeR(out, '[', instr.r, ']');
         break;
 
       case Machine.JUMPIop:
-        System.out.print ("JUMPI ");
+        out.append("JUMPI ");
         break;
 
       case Machine.JUMPIFop:
-        System.out.print ("JUMPIF");
-        writeN(instr.n);
-        writeD(instr.d);
-        writeR('[', instr.r, ']');
+        out.append("JUMPIF");
+        writeN(out, instr.n);
+        writeD(out, instr.d);
+        writeR(out, '[', instr.r, ']');
         break;
 
       case Machine.HALTop:
-        System.out.print ("HALT  ");
+        out.append("HALT  ");
     }
   }
 
@@ -334,11 +366,8 @@ public class Disassembler {
    * Writes all instructions of the program in code store.
    */
   private static void disassembleProgram() {
-    for (int addr = Machine.CB; addr < CT; addr++) {
-      System.out.print (addr + ":  ");
-      writeInstruction(Machine.code[addr]);
-      System.out.println();
-    }
+    for (int addr = Machine.CB; addr < CT; addr++)
+      System.out.println (listing.getLine(addr));
   }
 
 
@@ -350,27 +379,10 @@ public class Disassembler {
    */
   static void loadObjectProgram (String objectName) {
 
-    FileInputStream objectFile = null;
-    DataInputStream objectStream = null;
-
-    int addr;
-    boolean finished = false;
-
     try {
-      objectFile = new FileInputStream (objectName);
-      objectStream = new DataInputStream (objectFile);
-
-      addr = Machine.CB;
-      while (!finished) {
-        Machine.code[addr] = Instruction.read(objectStream);
-        if (Machine.code[addr] == null)
-          finished = true;
-        else
-          addr = addr + 1;
-      }
-      CT = addr;
-      objectFile.close();
-    } catch (FileNotFoundException s) {
+      listing = Listing.read(Paths.get(objectName));
+      CT = listing.size();
+    } catch (NoSuchFileException s) {
       CT = Machine.CB;
       System.err.println ("Error opening object file: " + s);
     } catch (IOException s) {
@@ -379,7 +391,6 @@ public class Disassembler {
     }
   }
 
-
 // DISASSEMBLE
 
   public static void main(String[] args) {
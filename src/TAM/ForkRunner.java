@@ -0,0 +1,147 @@
+package TAM;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Runs one program against many input files, executing the part of the
+ * program before its first input only once.
+ *
+ * <p>
+ * The prologue runs in the interpreter until the program first calls get,
+ * geteol or getint, and the machine is then captured in a
+ * {@link Checkpoint}. Each input file gets a fresh machine that resumes
+ * the checkpoint with that file as its input, on a pool of threads. The
+ * output the prologue wrote is kept, and starts the output of every run.
+ * A program that halts or fails before reading any input is only run
+ * once, and every input gets its output.
+ * </p>
+ */
+public final class ForkRunner {
+
+    private final CodeImage image;
+    private final int storeSize;
+    private final Consumer<TamMachine> configuration;
+
+    private Checkpoint fork;
+    private byte[] prologueOutput;
+    private byte[] finishedOutput;
+    private int finishedStatus;
+
+    /**
+     * Creates a runner for the given program.
+     * @param image	the program to run.
+     * @param storeSize	the data store size of each machine, in words.
+     * @param configuration	sets the limits and options of each machine
+     *			before it runs.
+     */
+    public ForkRunner(CodeImage image, int storeSize, Consumer<TamMachine> configuration) {
+        this.image = image;
+        this.storeSize = storeSize;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Runs the program up to its first input. Called by {@link #run} if it
+     * has not been called before.
+     * @return true if the program stopped before an input primitive, false
+     *         if it halted or failed without reading any input.
+     */
+    public boolean runPrologue() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(output, true);
+        TamMachine m = new TamMachine(image, InputStream.nullInputStream(), out, storeSize);
+        configuration.accept(m);
+        m.inputReady = displacement -> false;
+        m.run();
+        if (m.status == TamMachine.RUNNING) {
+            fork = new Checkpoint(m, m.granted - m.fuel);
+            prologueOutput = output.toByteArray();
+        } else {
+            m.showStatus();
+            finishedOutput = output.toByteArray();
+            finishedStatus = m.status;
+        }
+        return fork != null;
+    }
+
+    /**
+     * Returns the number of instructions executed before the fork point, or
+     * 0 if the program never reads input.
+     */
+    public long getPrologueInstructions() {
+        return (fork != null) ? fork.getInstructions() : 0;
+    }
+
+    /**
+     * Runs the program against each of the given input files, writing the
+     * output of each run, followed by its status, to the file of the same
+     * name in the output directory with <code>.out</code> added.
+     * @param inputs	the input files.
+     * @param outputDirectory	the directory to write the outputs to.
+     * @param threads	the number of runs to execute at once.
+     * @return the final status of each run, in the order of the inputs.
+     * @throws IOException if an input cannot be read or an output written.
+     */
+    public int[] run(List<Path> inputs, Path outputDirectory, int threads) throws IOException {
+        if ((fork == null) && (finishedOutput == null)) {
+            runPrologue();
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Integer>> runs = new ArrayList<>();
+            for (Path input : inputs) {
+                Path output = outputDirectory.resolve(input.getFileName() + ".out");
+                runs.add(pool.submit(() -> runOne(input, output)));
+            }
+            int[] statuses = new int[runs.size()];
+            for (int index = 0; index < statuses.length; index++) {
+                try {
+                    statuses[index] = runs.get(index).get();
+                } catch (java.util.concurrent.ExecutionException s) {
+                    if (s.getCause() instanceof IOException) {
+                        throw (IOException) s.getCause();
+                    }
+                    throw new IllegalStateException(s.getCause());
+                } catch (InterruptedException s) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted", s);
+                }
+            }
+            return statuses;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Resumes the fork point with the given input, and returns the final
+    // status.
+    private int runOne(Path input, Path output) throws IOException {
+        try (PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(output.toFile())))) {
+            if (fork == null) {
+                out.write(finishedOutput);
+                return finishedStatus;
+            }
+            out.write(prologueOutput);
+            try (InputStream in = new FileInputStream(input.toFile())) {
+                TamMachine m = new TamMachine(image, in, out, storeSize);
+                configuration.accept(m);
+                m.resume(fork);
+                m.showStatus();
+                return m.status;
+            }
+        }
+    }
+}
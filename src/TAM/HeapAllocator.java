@@ -0,0 +1,287 @@
+package TAM;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * The heap allocator behind the new and dispose primitives of a
+ * {@link TamMachine}.
+ *
+ * <p>
+ * The heap grows down from HB. A block released by dispose is coalesced
+ * with any free neighbours and kept on a free list for its size: one list
+ * for each size up to {@link #SMALLSIZES} words, and a single list, searched
+ * first-fit, for larger blocks. A request is served from its own size
+ * class if possible, then by splitting a larger free block, and only then
+ * by moving HT down. A free block that reaches HT is given back to the
+ * space between the stack and the heap.
+ * </p>
+ *
+ * <p>
+ * The free lists live outside the data store, in arrays indexed by
+ * address, so a program cannot corrupt them and neither allocation nor
+ * disposal creates any Java objects. Live blocks are never moved: the
+ * program holds their addresses as plain integers, so compaction is
+ * limited to giving free space at HT back to the stack.
+ * </p>
+ */
+public final class HeapAllocator {
+
+    /**
+     * The number of exact size classes. Larger blocks share one list.
+     */
+    public final static int SMALLSIZES = 16;
+
+    private final TamMachine m;
+
+    // Blocks, indexed by address and created on the first allocation.
+    // For a live block at addr of size words, liveSize[addr] = size. For a
+    // free block, freeSize[addr] = size and freeStart[addr + size] = addr.
+    // next and prev link the free blocks of each size class.
+    private final static int NIL = -1;
+
+    private int[] liveSize, freeSize, freeStart, next, prev;
+    private final int[] lists = new int[SMALLSIZES + 1];
+
+    // STATISTICS
+    private long allocations, disposals, wordsAllocated, wordsDisposed;
+    private int freeWords, freeBlocks, peakHeap;
+    private long startTime;
+
+    HeapAllocator(TamMachine m) {
+        this.m = m;
+    }
+
+    // Empties the heap, at the start of a run.
+    void reset() {
+        if (liveSize != null) {
+            Arrays.fill(liveSize, 0);
+            Arrays.fill(freeSize, 0);
+            Arrays.fill(freeStart, NIL);
+        }
+        Arrays.fill(lists, NIL);
+        allocations = disposals = wordsAllocated = wordsDisposed = 0;
+        freeWords = freeBlocks = peakHeap = 0;
+        startTime = System.nanoTime();
+    }
+
+    private void createBlocks() {
+        if (liveSize == null) {
+            int length = m.HB + 1;
+            liveSize = new int[length];
+            freeSize = new int[length];
+            freeStart = new int[length];
+            next = new int[length];
+            prev = new int[length];
+            Arrays.fill(freeStart, NIL);
+        }
+    }
+
+    private static int sizeClass(int size) {
+        return (size < SMALLSIZES) ? size : SMALLSIZES;
+    }
+
+    private void link(int addr, int size) {
+        int list = sizeClass(size);
+        freeSize[addr] = size;
+        freeStart[addr + size] = addr;
+        next[addr] = lists[list];
+        prev[addr] = NIL;
+        if (lists[list] != NIL) {
+            prev[lists[list]] = addr;
+        }
+        lists[list] = addr;
+        freeWords = freeWords + size;
+        freeBlocks = freeBlocks + 1;
+    }
+
+    private void unlink(int addr) {
+        int size = freeSize[addr];
+        if (prev[addr] != NIL) {
+            next[prev[addr]] = next[addr];
+        } else {
+            lists[sizeClass(size)] = next[addr];
+        }
+        if (next[addr] != NIL) {
+            prev[next[addr]] = prev[addr];
+        }
+        freeSize[addr] = 0;
+        freeStart[addr + size] = NIL;
+        freeWords = freeWords - size;
+        freeBlocks = freeBlocks - 1;
+    }
+
+    // Returns a free block of at least size words, or NIL if there is none.
+    private int findFree(int size) {
+        for (int list = sizeClass(size); list < SMALLSIZES; list++) {
+            if (lists[list] != NIL) {
+                return lists[list];
+            }
+        }
+        for (int addr = lists[SMALLSIZES]; addr != NIL; addr = next[addr]) {
+            if (freeSize[addr] >= size) {
+                return addr;
+            }
+        }
+        return NIL;
+    }
+
+    /**
+     * Allocates a block of the given size, failing the machine with
+     * FAILEDDATASTOREFULL if it does not fit, or FAILEDHEAPLIMIT if it
+     * would take the heap over its limit.
+     * @param size	the number of words to allocate.
+     * @return the address of the block.
+     */
+    int allocate(int size) {
+        createBlocks();
+        int addr = (size > 0) ? findFree(size) : NIL;
+        if (addr != NIL) {
+            int blockSize = freeSize[addr];
+            unlink(addr);
+            if (blockSize > size) {
+                link(addr + size, blockSize - size);
+            }
+        } else {
+            m.checkSpace(size);
+            if ((m.status == TamMachine.RUNNING) && (m.HB - m.HT + size > m.heapLimit)) {
+                m.status = TamMachine.FAILEDHEAPLIMIT;
+            }
+            if (m.status != TamMachine.RUNNING) {
+                return m.HT;
+            }
+            m.HT = m.HT - size;
+            addr = m.HT;
+            peakHeap = Math.max(peakHeap, m.HB - m.HT);
+        }
+        if (size > 0) {
+            liveSize[addr] = size;
+        }
+        allocations++;
+        wordsAllocated = wordsAllocated + size;
+        return addr;
+    }
+
+    /**
+     * Releases the block of the given size at addr, failing the machine
+     * with FAILEDINVALIDHEAPADDRESS unless it is a live block of exactly
+     * that size.
+     * @param addr	the address of the block.
+     * @param size	the number of words in the block.
+     */
+    void dispose(int addr, int size) {
+        if ((liveSize == null) || (size <= 0) || (addr < m.HT) || (addr > m.HB - size)
+                || (liveSize[addr] != size)) {
+            m.status = TamMachine.FAILEDINVALIDHEAPADDRESS;
+            return;
+        }
+        liveSize[addr] = 0;
+        disposals++;
+        wordsDisposed = wordsDisposed + size;
+        // Coalesce with the free blocks just below and just above.
+        int below = freeStart[addr];
+        if (below != NIL) {
+            unlink(below);
+            size = size + (addr - below);
+            addr = below;
+        }
+        if ((addr + size < m.HB) && (freeSize[addr + size] != 0)) {
+            int above = addr + size;
+            size = size + freeSize[above];
+            unlink(above);
+        }
+        if (addr == m.HT) {
+            m.HT = m.HT + size;
+        } else {
+            link(addr, size);
+        }
+    }
+
+    // CHECKPOINTS
+
+    // Returns the blocks between HT and HB, in ascending order: the address
+    // and size of each live block, and the address and negated size of
+    // each free block.
+    int[] blocks() {
+        int[] blocks = new int[0];
+        int count = 0;
+        if (liveSize != null) {
+            for (int addr = m.HT; addr < m.HB; addr++) {
+                int size = (liveSize[addr] != 0) ? liveSize[addr] : -freeSize[addr];
+                if (size != 0) {
+                    if (count == blocks.length) {
+                        blocks = Arrays.copyOf(blocks, Math.max(16, 2 * count));
+                    }
+                    blocks[count] = addr;
+                    blocks[count + 1] = size;
+                    count = count + 2;
+                    addr = addr + Math.abs(size) - 1;
+                }
+            }
+        }
+        return Arrays.copyOf(blocks, count);
+    }
+
+    // Empties the heap and rebuilds it from the blocks returned by blocks(),
+    // with HT already restored.
+    void restore(int[] blocks) {
+        reset();
+        if (blocks.length > 0) {
+            createBlocks();
+        }
+        for (int index = 0; index < blocks.length; index = index + 2) {
+            int addr = blocks[index], size = blocks[index + 1];
+            if (size > 0) {
+                liveSize[addr] = size;
+            } else {
+                link(addr, -size);
+            }
+        }
+        peakHeap = m.HB - m.HT;
+    }
+
+    // STATISTICS
+
+    /**
+     * Returns the number of words held by free blocks inside the heap.
+     */
+    public int getFreeWords() {
+        return freeWords;
+    }
+
+    /**
+     * Returns the fragmentation of the free space inside the heap, from 0
+     * when it is all in one block to nearly 1 when it is scattered in
+     * small blocks.
+     */
+    public double getFragmentation() {
+        if (freeWords == 0) {
+            return 0.0;
+        }
+        int largest = 0;
+        for (int list = SMALLSIZES; (list > 0) && (largest == 0); list--) {
+            for (int addr = lists[list]; addr != NIL; addr = next[addr]) {
+                largest = Math.max(largest, freeSize[addr]);
+            }
+        }
+        return 1.0 - (double) largest / freeWords;
+    }
+
+    /**
+     * Writes the allocation statistics of the last run.
+     * @param out	the stream to write to.
+     */
+    public void showStatistics(PrintStream out) {
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        out.println("");
+        out.println("Heap statistics:");
+        out.println("");
+        out.println(String.format("  allocations      %12d  (%d words)", allocations, wordsAllocated));
+        out.println(String.format("  disposals        %12d  (%d words)", disposals, wordsDisposed));
+        out.println(String.format("  heap size        %12d  (peak %d words)", m.HB - m.HT, peakHeap));
+        out.println(String.format("  free inside heap %12d  (%d blocks)", freeWords, freeBlocks));
+        out.println(String.format("  fragmentation    %12.3f", getFragmentation()));
+        out.println(String.format("  allocation rate  %12.0f  allocations/s",
+                (seconds > 0) ? allocations / seconds : 0.0));
+    }
+}
@@ -0,0 +1,49 @@
+package TAM;
+
+import java.io.IOException;
+
+/**
+ * The channel through which the I/O primitives of a {@link TamMachine}
+ * read and write characters.
+ *
+ * <p>
+ * A channel may buffer its output. The machine calls {@link #flush()}
+ * before every input primitive, so prompts are visible before the program
+ * waits for input, and when a run stops.
+ * </p>
+ */
+public interface IOChannel {
+
+    /**
+     * Reads the next character.
+     * @return the character read, or -1 at the end of the input.
+     * @throws IOException if the input cannot be read.
+     */
+    int read() throws IOException;
+
+    /**
+     * Writes a character.
+     * @param ch	the character to write.
+     * @throws IOException if the output cannot be written.
+     */
+    void put(char ch) throws IOException;
+
+    /**
+     * Writes an integer in decimal.
+     * @param value	the integer to write.
+     * @throws IOException if the output cannot be written.
+     */
+    void putInt(int value) throws IOException;
+
+    /**
+     * Writes a line separator.
+     * @throws IOException if the output cannot be written.
+     */
+    void putEol() throws IOException;
+
+    /**
+     * Writes out any buffered output.
+     * @throws IOException if the output cannot be written.
+     */
+    void flush() throws IOException;
+}
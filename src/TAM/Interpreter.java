@@ -13,598 +13,312 @@
  */
 package TAM;
 
-import java.io.DataInputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class Interpreter {
 
-    static String objectName;
-    static int currentChar;
-    
-    // DATA STORE
-    static int[] data = new int[1024];
-
-    // DATA STORE REGISTERS AND OTHER REGISTERS
-    final static int CB = 0,
-            SB = 0,
-            HB = 1024;  // = upper bound of data array + 1
-
-    static int CT, CP, ST, HT, LB, status;
-
-    // status values
-    final static int RUNNING = 0, HALTED = 1, FAILEDDATASTOREFULL = 2, FAILEDINVALIDCODEADDRESS = 3,
-            FAILEDINVALIDINSTRUCTION = 4, FAILEDOVERFLOW = 5, FAILEDZERODIVIDE = 6,
-            FAILEDIOERROR = 7, FAILEDARRAYINDEXOUTOFBOUNDS = 8;
-
-    static long accumulator;
-
-    //Returns the current content of register r,
-    //even if r is onhe of the pseudo-registers L1..L6
-    static int content(int r) {
-        return switch (r) {
-            case Machine.CBr -> CB;
-            case Machine.CTr -> CT;
-            case Machine.PBr -> Machine.PB;
-            case Machine.PTr -> Machine.PT;
-            case Machine.SBr -> SB;
-            case Machine.STr -> ST;
-            case Machine.HBr -> HB;
-            case Machine.HTr -> HT;
-            case Machine.LBr -> LB;
-            case Machine.L1r -> data[LB];
-            case Machine.L2r -> data[data[LB]];
-            case Machine.L3r -> data[data[data[LB]]];
-            case Machine.L4r -> data[data[data[data[LB]]]];
-            case Machine.L5r -> data[data[data[data[data[LB]]]]];
-            case Machine.L6r -> data[data[data[data[data[data[LB]]]]]];
-            case Machine.CPr -> CP;
-            default -> 0;
-        };
+// LOADING
+    /**
+     * Loads a TAM object program from the named file.
+     * @param objectName	the name of the object file.
+     * @return the code image of the program, or <code>null</code> if the
+     *         file could not be read or holds no instructions.
+     */
+    public static CodeImage loadObjectProgram(String objectName) {
+        CodeImage image;
+        try {
+            image = CodeImage.read(Paths.get(objectName));
+        } catch (NoSuchFileException s) {
+            System.err.println("Error opening object file: " + s);
+            return null;
+        } catch (IOException s) {
+            System.err.println("Error reading object file: " + s);
+            return null;
+        }
+        return (image.size() != Machine.CB) ? image : null;
     }
 
-    // PROGRAM STATUS
-    // Writes a summary of the machine state.
-    static void dump() {
-        int addr, staticLink, dynamicLink, localRegNum;
-
-        System.out.println("");
-        System.out.println("State of data store and registers:");
-        System.out.println("");
-        if (HT == HB) {
-            System.out.println("            |--------|          (heap is empty)");
-        } else {
-            System.out.println("       HB-->");
-            System.out.println("            |--------|");
-            for (addr = HB - 1; addr >= HT; addr--) {
-                System.out.print(addr + ":");
-                if (addr == HT) {
-                    System.out.print(" HT-->");
-                } else {
-                    System.out.print("      ");
-                }
-                System.out.println("|" + data[addr] + "|");
-            }
-            System.out.println("            |--------|");
-        }
-        System.out.println("            |////////|");
-        System.out.println("            |////////|");
-        if (ST == SB) {
-            System.out.println("            |--------|          (stack is empty)");
-        } else {
-            dynamicLink = LB;
-            staticLink = LB;
-            localRegNum = Machine.LBr;
-            System.out.println("      ST--> |////////|");
-            System.out.println("            |--------|");
-            for (addr = ST - 1; addr >= SB; addr--) {
-                System.out.print(addr + ":");
-                if (addr == SB) {
-                    System.out.print(" SB-->");
-                } else if (addr == staticLink) {
-                    switch (localRegNum) {
-                        case Machine.LBr:
-                            System.out.print(" LB-->");
-                            break;
-                        case Machine.L1r:
-                            System.out.print(" L1-->");
-                            break;
-                        case Machine.L2r:
-                            System.out.print(" L2-->");
-                            break;
-                        case Machine.L3r:
-                            System.out.print(" L3-->");
-                            break;
-                        case Machine.L4r:
-                            System.out.print(" L4-->");
-                            break;
-                        case Machine.L5r:
-                            System.out.print(" L5-->");
-                            break;
-                        case Machine.L6r:
-                            System.out.print(" L6-->");
-                            break;
+// CHECKPOINTS
+    // Makes the machine take checkpoints every interval instructions, if
+    // interval is positive.
+    // Checkpoints are written to the named file on the returned executor's
+    // thread, while the run carries on.
+    private static ExecutorService startCheckpoints(TamMachine machine, String fileName, long interval) {
+        ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "TAM checkpoint writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // A checkpoint taken while an older one waits to be written
+        // replaces it.
+        AtomicReference<Checkpoint> pending = new AtomicReference<>();
+        machine.setCheckpointHandler(interval, checkpoint -> {
+            if (pending.getAndSet(checkpoint) == null) {
+                writer.execute(() -> {
+                    try {
+                        pending.getAndSet(null).write(fileName);
+                    } catch (IOException s) {
+                        System.err.println("Error writing checkpoint: " + s);
                     }
-                    staticLink = data[addr];
-                    localRegNum++;
-                } else {
-                    System.out.print("      ");
-                }
-                if ((addr == dynamicLink) && (dynamicLink != SB)) {
-                    System.out.print("|SL=" + data[addr] + "|");
-                } else if ((addr == dynamicLink + 1) && (dynamicLink != SB)) {
-                    System.out.print("|DL=" + data[addr] + "|");
-                } else if ((addr == dynamicLink + 2) && (dynamicLink != SB)) {
-                    System.out.print("|RA=" + data[addr] + "|");
-                } else {
-                    System.out.print("|" + data[addr] + "|");
-                }
-                System.out.println("");
-                if (addr == dynamicLink) {
-                    System.out.println("            |--------|");
-                    dynamicLink = data[addr + 1];
-                }
+                });
             }
-        }
-        System.out.println("");
-    }
-
-    static void showStatus() {
-        // Writes an indication of whether and why the program has terminated.
-        System.out.println("");
-        switch (status) {
-            case RUNNING -> System.out.println("Program is running.");
-            case HALTED -> System.out.println("Program has halted normally.");
-            case FAILEDDATASTOREFULL -> System.out.println("Program has failed due to exhaustion of Data Store.");
-            case FAILEDINVALIDCODEADDRESS -> System.out.println("Program has failed due to an invalid code address.");
-            case FAILEDINVALIDINSTRUCTION -> System.out.println("Program has failed due to an invalid instruction.");
-            case FAILEDOVERFLOW -> System.out.println("Program has failed due to overflow.");
-            case FAILEDZERODIVIDE -> System.out.println("Program has failed due to division by zero.");
-            case FAILEDIOERROR -> System.out.println("Program has failed due to an IO error.");
-            case FAILEDARRAYINDEXOUTOFBOUNDS -> System.out.println("Program has failed due to an Index Out of Bounds");
-        }
-        if (status != HALTED) {
-            dump();
-        }
+        });
+        return writer;
     }
 
-    // INTERPRETATION
-    static void checkSpace(int spaceNeeded) {
-        // Signals failure if there is not enough space to expand the stack or
-        // heap by spaceNeeded.
-
-        if (HT - ST < spaceNeeded) {
-            status = FAILEDDATASTOREFULL;
+// FORKING
+    // Returns the files of the directory that are inputs, that is all but
+    // the outputs, whose names end in .out, in order of name.
+    static List<Path> listInputs(String directory) throws IOException {
+        try (Stream<Path> files = Files.list(Paths.get(directory))) {
+            return files.filter(Files::isRegularFile)
+                    .filter(file -> !file.getFileName().toString().endsWith(".out"))
+                    .sorted()
+                    .collect(Collectors.toList());
         }
     }
 
-    static boolean isTrue(int datum) {
-        // Tests whether the given datum represents true.
-        return (datum == Machine.trueRep);
-    }
-
-    static boolean equal(int size, int addr1, int addr2) {
-        // Tests whether two multi-word objects are equal, given their common
-        // size and their base addresses.
-
-        boolean eq;
-        int index;
-
-        eq = true;
-        index = 0;
-        while (eq && (index < size)) {
-            if (data[addr1 + index] == data[addr2 + index]) {
-                index++;
+    // Runs the program against every file in the input directory, except
+    // earlier outputs, sharing the work done before its first input.
+    private static void runForks(ForkRunner runner, String inputDirectory, String outputDirectory, int threads) {
+        try {
+            List<Path> inputs = listInputs(inputDirectory);
+            if (runner.runPrologue()) {
+                System.out.println("Forking " + inputs.size() + " runs after "
+                        + runner.getPrologueInstructions() + " instructions.");
             } else {
-                eq = false;
+                System.out.println("Program finished before reading any input.");
+            }
+            int halted = 0;
+            for (int status : runner.run(inputs, Paths.get(outputDirectory), threads)) {
+                if (status == TamMachine.HALTED) {
+                    halted++;
+                }
             }
+            System.out.println(halted + " runs halted normally, " + (inputs.size() - halted) + " failed.");
+        } catch (IOException s) {
+            System.err.println("Error running forks: " + s);
         }
-        return eq;
     }
 
-    static int overflowChecked(long datum) {
-        // Signals failure if the datum is too large to fit into a single word,
-        // otherwise returns the datum as a single word.
-
-        if ((-Machine.maxintRep <= datum) && (datum <= Machine.maxintRep)) {
-            return (int) datum;
-        } else {
-            status = FAILEDOVERFLOW;
-            return 0;
+// OPTIONS
+    // Returns the value of a numeric option, the text of arg after the
+    // given name, which must be a whole number from min to max.
+    static long option(String arg, String name, long min, long max) {
+        long value;
+        try {
+            value = Long.parseLong(arg.substring(name.length()));
+        } catch (NumberFormatException s) {
+            value = min - 1;
         }
+        if ((value < min) || (value > max)) {
+            throw new IllegalArgumentException("Invalid option " + arg
+                    + ": the value must be a whole number from " + min + " to " + max);
+        }
+        return value;
     }
 
-    static int toInt(boolean b) {
-        return b ? Machine.trueRep : Machine.falseRep;
-    }
-
-    
-
-    static int readInt() throws java.io.IOException {
-        int temp = 0;
-        int sign = 1;
+// RUNNING
+    public static void main(String[] args) {
+        System.out.println("********** TAM Interpreter (Java Version 2.1) **********");
 
-        do {
-            currentChar = System.in.read();
-        } while (Character.isWhitespace((char) currentChar));
+        boolean bound = false, compiled = false, verifying = false, mining = false, quickening = false,
+                heapStatistics = false, profiling = false;
+        String profileName = null, sampleName = null, checkpointName = null, resumeName = null,
+                forkName = null, outputName = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long checkpointInterval = 0;
+        long sampleInterval = 1000;
+        Superinstructions fusion = null;
+        String objectName = "obj.tam";
+        int storeSize = TamMachine.DEFAULTSTORESIZE;
+        long instructionLimit = Long.MAX_VALUE, timeLimit = 0, outputLimit = Long.MAX_VALUE;
+        int heapLimit = Integer.MAX_VALUE;
 
-        if ((currentChar == '-') || (currentChar == '+')) {
-            do {
-                sign = (currentChar == '-') ? -1 : 1;
-                currentChar = System.in.read();
-            } while ((currentChar == '-') || currentChar == '+');
+        try {
+            for (String arg : args) {
+                if (arg.equals("-bound")) {
+                    bound = true;
+                } else if (arg.equals("-compile")) {
+                    compiled = true;
+                } else if (arg.equals("-verify")) {
+                    verifying = true;
+                } else if (arg.equals("-fuse")) {
+                    fusion = new Superinstructions();
+                } else if (arg.startsWith("-fuse=")) {
+                    fusion = new Superinstructions(List.of(arg.substring(6).split(",")));
+                } else if (arg.equals("-quicken")) {
+                    quickening = true;
+                } else if (arg.startsWith("-memory=")) {
+                    storeSize = (int) option(arg, "-memory=", 1, TamMachine.MAXSTORESIZE);
+                } else if (arg.startsWith("-maxinstructions=")) {
+                    instructionLimit = option(arg, "-maxinstructions=", 0, Long.MAX_VALUE);
+                } else if (arg.startsWith("-timelimit=")) {
+                    timeLimit = option(arg, "-timelimit=", 0, Long.MAX_VALUE);
+                } else if (arg.startsWith("-maxoutput=")) {
+                    outputLimit = option(arg, "-maxoutput=", 0, Long.MAX_VALUE);
+                } else if (arg.startsWith("-maxheap=")) {
+                    heapLimit = (int) option(arg, "-maxheap=", 0, Integer.MAX_VALUE);
+                } else if (arg.equals("-profile")) {
+                    profiling = true;
+                } else if (arg.startsWith("-profile=")) {
+                    profiling = true;
+                    profileName = arg.substring(9);
+                } else if (arg.startsWith("-sample=")) {
+                    sampleName = arg.substring(8);
+                } else if (arg.startsWith("-sampleinterval=")) {
+                    sampleInterval = option(arg, "-sampleinterval=", 1, Long.MAX_VALUE / 1000);
+                } else if (arg.startsWith("-checkpoint=")) {
+                    checkpointName = arg.substring(12);
+                } else if (arg.startsWith("-checkpointinterval=")) {
+                    checkpointInterval = option(arg, "-checkpointinterval=", 0, Long.MAX_VALUE);
+                } else if (arg.startsWith("-resume=")) {
+                    resumeName = arg.substring(8);
+                } else if (arg.startsWith("-fork=")) {
+                    forkName = arg.substring(6);
+                } else if (arg.startsWith("-output=")) {
+                    outputName = arg.substring(8);
+                } else if (arg.startsWith("-threads=")) {
+                    threads = (int) option(arg, "-threads=", 1, Integer.MAX_VALUE);
+                } else if (arg.equals("-heapstats")) {
+                    heapStatistics = true;
+                } else if (arg.equals("-mine")) {
+                    mining = true;
+                } else {
+                    objectName = arg;
+                }
+            }
+        } catch (IllegalArgumentException s) {
+            System.err.println(s.getMessage());
+            return;
         }
 
-        if (Character.isDigit((char) currentChar)) {
-            do {
-                temp = temp * 10 + (currentChar - '0');
-                currentChar = System.in.read();
-            } while (Character.isDigit((char) currentChar));
+        CodeImage image = loadObjectProgram(objectName);
+        Checkpoint resumed = null;
+        if ((image != null) && (resumeName != null)) {
+            try {
+                resumed = Checkpoint.read(resumeName);
+                storeSize = resumed.getStoreSize();
+            } catch (IOException s) {
+                System.err.println("Error reading checkpoint: " + s);
+                image = null;
+            }
         }
-
-        return sign * temp;
-    }
-
-    static void callPrimitive(int primitiveDisplacement) {
-        // Invokes the given primitive routine.
-
-        int addr, size;
-        char ch;
-
-        switch (primitiveDisplacement) {
-            case Machine.idDisplacement:
-                break; // nothing to be done
-            case Machine.notDisplacement:
-                data[ST - 1] = toInt(!isTrue(data[ST - 1]));
-                break;
-            case Machine.andDisplacement:
-                ST = ST - 1;
-                data[ST - 1] = toInt(isTrue(data[ST - 1]) & isTrue(data[ST]));
-                break;
-            case Machine.orDisplacement:
-                ST = ST - 1;
-                data[ST - 1] = toInt(isTrue(data[ST - 1]) | isTrue(data[ST]));
-                break;
-            case Machine.succDisplacement:
-                data[ST - 1] = overflowChecked(data[ST - 1] + 1);
-                break;
-            case Machine.predDisplacement:
-                data[ST - 1] = overflowChecked(data[ST - 1] - 1);
-                break;
-            case Machine.negDisplacement:
-                data[ST - 1] = -data[ST - 1];
-                break;
-            case Machine.addDisplacement:
-                ST = ST - 1;
-                accumulator = data[ST - 1];
-                data[ST - 1] = overflowChecked(accumulator + data[ST]);
-                break;
-            case Machine.subDisplacement:
-                ST = ST - 1;
-                accumulator = data[ST - 1];
-                data[ST - 1] = overflowChecked(accumulator - data[ST]);
-                break;
-            case Machine.multDisplacement:
-                ST = ST - 1;
-                accumulator = data[ST - 1];
-                data[ST - 1] = overflowChecked(accumulator * data[ST]);
-                break;
-            case Machine.divDisplacement:
-                ST = ST - 1;
-                accumulator = data[ST - 1];
-                if (data[ST] != 0) {
-                    data[ST - 1] = (int) (accumulator / data[ST]);
-                } else {
-                    status = FAILEDZERODIVIDE;
+        if ((image != null) && (forkName != null)) {
+            final long maxInstructions = instructionLimit, maxTime = timeLimit, maxOutput = outputLimit;
+            final int maxHeap = heapLimit;
+            runForks(new ForkRunner(image, storeSize, m -> {
+                m.setInstructionLimit(maxInstructions);
+                m.setTimeLimit(maxTime);
+                m.setOutputLimit(maxOutput);
+                m.setHeapLimit(maxHeap);
+            }), forkName, (outputName != null) ? outputName : forkName, threads);
+        } else if (image != null) {
+            TamMachine machine = new TamMachine(image, System.in, System.out, storeSize);
+            machine.setInstructionLimit(instructionLimit);
+            machine.setTimeLimit(timeLimit);
+            machine.setOutputLimit(outputLimit);
+            machine.setHeapLimit(heapLimit);
+            long[] executionCounts = null;
+            Profile profile = null;
+            Consumer<TamMachine> program = null;
+            Verifier verifier = null;
+            Sampler sampler = null;
+            ExecutorService checkpointWriter = null;
+            if (sampleName != null) {
+                sampler = new Sampler(image, sampleInterval);
+                sampler.start(machine);
+            }
+            if (checkpointName != null) {
+                checkpointWriter = startCheckpoints(machine, checkpointName, checkpointInterval);
+            }
+            if (resumed != null) {
+                // A resumed run continues in the interpreter.
+                compiled = bound = verifying = false;
+            }
+            if (compiled) {
+                program = JvmCompiler.compile(image);
+            } else if (verifying) {
+                verifier = new Verifier(image);
+                if (!verifier.isVerified()) {
+                    System.err.println("Verification failed, running with checks: "
+                            + verifier.getProblem());
+                    verifier = null;
                 }
-                break;
-            case Machine.modDisplacement:
-                ST = ST - 1;
-                accumulator = data[ST - 1];
-                if (data[ST] != 0) {
-                    data[ST - 1] = (int) (accumulator % data[ST]);
+            }
+            if (program != null) {
+                machine.initializeRegisters();
+                program.accept(machine);
+            } else if (bound) {
+                new BoundCode(image).run(machine);
+            } else if (verifier != null) {
+                verifier.run(machine);
+            } else {
+                machine.setFusion(fusion);
+                machine.setQuickening(quickening);
+                if (mining) {
+                    executionCounts = machine.countExecutions();
+                }
+                if (profiling) {
+                    profile = new Profile(image);
+                    machine.setProfile(profile);
+                }
+                if (resumed != null) {
+                    try {
+                        machine.resume(resumed);
+                    } catch (IllegalArgumentException s) {
+                        System.err.println("Cannot resume checkpoint: " + s.getMessage());
+                        return;
+                    }
                 } else {
-                    status = FAILEDZERODIVIDE;
+                    machine.run();
                 }
-                break;
-            case Machine.ltDisplacement:
-                ST = ST - 1;
-                data[ST - 1] = toInt(data[ST - 1] < data[ST]);
-                break;
-            case Machine.leDisplacement:
-                ST = ST - 1;
-                data[ST - 1] = toInt(data[ST - 1] <= data[ST]);
-                break;
-            case Machine.geDisplacement:
-                ST = ST - 1;
-                data[ST - 1] = toInt(data[ST - 1] >= data[ST]);
-                break;
-            case Machine.gtDisplacement:
-                ST = ST - 1;
-                data[ST - 1] = toInt(data[ST - 1] > data[ST]);
-                break;
-            case Machine.eqDisplacement:
-                size = data[ST - 1]; // size of each comparand
-                ST = ST - 2 * size;
-                data[ST - 1] = toInt(equal(size, ST - 1, ST - 1 + size));
-                break;
-            case Machine.neDisplacement:
-                size = data[ST - 1]; // size of each comparand
-                ST = ST - 2 * size;
-                data[ST - 1] = toInt(!equal(size, ST - 1, ST - 1 + size));
-                break;
-            case Machine.eolDisplacement:
-                data[ST] = toInt(currentChar == '\n');
-                ST = ST + 1;
-                break;
-            case Machine.eofDisplacement:
-                data[ST] = toInt(currentChar == -1);
-                ST = ST + 1;
-                break;
-            case Machine.getDisplacement:
-                ST = ST - 1;
-                addr = data[ST];
+            }
+            if (checkpointWriter != null) {
+                checkpointWriter.shutdown();
                 try {
-                    currentChar = System.in.read();
-                } catch (java.io.IOException s) {
-                    status = FAILEDIOERROR;
+                    checkpointWriter.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException s) {
+                    // leave any checkpoint still being written
                 }
-                data[addr] = (int) currentChar;
-                break;
-            case Machine.putDisplacement:
-                ST = ST - 1;
-                ch = (char) data[ST];
-                System.out.print(ch);
-                break;
-            case Machine.geteolDisplacement:
-        try {
-                while ((currentChar = System.in.read()) != '\n');
-            } catch (java.io.IOException s) {
-                status = FAILEDIOERROR;
             }
-            break;
-            case Machine.puteolDisplacement:
-                System.out.println("");
-                break;
-            case Machine.getintDisplacement:
-                ST = ST - 1;
-                addr = data[ST];
+            if (sampler != null) {
+                sampler.stop();
                 try {
-                    accumulator = readInt();
+                    sampler.write(sampleName);
                 } catch (java.io.IOException s) {
-                    status = FAILEDIOERROR;
+                    System.err.println("Error writing samples: " + s);
                 }
-                data[addr] = (int) accumulator;
-                break;
-            case Machine.putintDisplacement:
-                ST = ST - 1;
-                accumulator = data[ST];
-                System.out.print(accumulator);
-                break;
-            case Machine.newDisplacement:
-                size = data[ST - 1];
-                checkSpace(size);
-                HT = HT - size;
-                data[ST - 1] = HT;
-                break;
-            case Machine.disposeDisplacement:
-                ST = ST - 1; // no action taken at present
-                break;
-            case Machine.indexCheckDisplacement:
-                // Upper bound, then lower bound, then index to check
-                if (data[ST - 1] <= data[ST - 3] || data[ST - 2] > data[ST - 3]) {
-                    status = FAILEDARRAYINDEXOUTOFBOUNDS;// It's out of bounds
-                } else {
-                    ST = ST - 3;
-                }
-                break;
-        }
-    }
-
-    static void interpretProgram() {
-        // Runs the program in code store.
-
-        Instruction currentInstr;
-        int op, r, n, d, addr, index;
-
-        // Initialize registers ...
-        ST = SB;
-        HT = HB;
-        LB = SB;
-        CP = CB;
-        status = RUNNING;
-        do {
-            // Fetch instruction ...
-            currentInstr = Machine.code[CP];
-            // Decode instruction ...
-            op = currentInstr.op;
-            r = currentInstr.r;
-            n = currentInstr.n;
-            d = currentInstr.d;
-            // Execute instruction ...
-            //dump();//Debugging
-            switch (op) {
-                case Machine.LOADop:
-                    addr = d + content(r);
-                    checkSpace(n);
-                    for (index = 0; index < n; index++) {
-                        data[ST + index] = data[addr + index];
-                    }
-                    ST = ST + n;
-                    CP = CP + 1;
-                    break;
-                case Machine.LOADAop:
-                    addr = d + content(r);
-                    checkSpace(1);
-                    data[ST] = addr;
-                    ST = ST + 1;
-                    CP = CP + 1;
-                    break;
-                case Machine.LOADIop:
-                    ST = ST - 1;
-                    addr = data[ST];
-                    checkSpace(n);
-                    for (index = 0; index < n; index++) {
-                        data[ST + index] = data[addr + index];
-                    }
-                    ST = ST + n;
-                    CP = CP + 1;
-                    break;
-                case Machine.LOADLop:
-                    checkSpace(1);
-                    data[ST] = d;
-                    ST = ST + 1;
-                    CP = CP + 1;
-                    break;
-                case Machine.STOREop:
-                    addr = d + content(r);
-                    ST = ST - n;
-                    for (index = 0; index < n; index++) {
-                        data[addr + index] = data[ST + index];
-                    }
-                    CP = CP + 1;
-                    break;
-                case Machine.STOREIop:
-                    ST = ST - 1;
-                    addr = data[ST];
-                    ST = ST - n;
-                    for (index = 0; index < n; index++) {
-                        data[addr + index] = data[ST + index];
-                    }
-                    CP = CP + 1;
-                    break;
-                case Machine.CALLop:
-                    addr = d + content(r);
-                    if (addr >= Machine.PB) {
-                        callPrimitive(addr - Machine.PB);
-                        CP = CP + 1;
-                    } else {
-                        checkSpace(3);
-                        if ((0 <= n) && (n <= 15)) {
-                            data[ST] = content(n); // static link
-                        } else {
-                            status = FAILEDINVALIDINSTRUCTION;
-                        }
-                        data[ST + 1] = LB; // dynamic link
-                        data[ST + 2] = CP + 1; // return address
-                        LB = ST;
-                        ST = ST + 3;
-                        CP = addr;
-                    }
-                    break;
-                case Machine.CALLIop:
-                    ST = ST - 2;
-                    addr = data[ST + 1];
-                    if (addr >= Machine.PB) {
-                        callPrimitive(addr - Machine.PB);
-                        CP = CP + 1;
-                    } else {
-                        // data[ST] = static link already
-                        data[ST + 1] = LB; // dynamic link
-                        data[ST + 2] = CP + 1; // return address
-                        LB = ST;
-                        ST = ST + 3;
-                        CP = addr;
-                    }
-                    break;
-                case Machine.RETURNop:
-                    addr = LB - d;
-                    CP = data[LB + 2];
-                    LB = data[LB + 1];
-                    ST = ST - n;
-                    for (index = 0; index < n; index++) {
-                        data[addr + index] = data[ST + index];
-                    }
-                    ST = addr + n;
-                    break;
-                case Machine.PUSHop:
-                    checkSpace(d);
-                    ST = ST + d;
-                    CP = CP + 1;
-                    break;
-                case Machine.POPop:
-                    addr = ST - n - d;
-                    ST = ST - n;
-                    for (index = 0; index < n; index++) {
-                        data[addr + index] = data[ST + index];
-                    }
-                    ST = addr + n;
-                    CP = CP + 1;
-                    break;
-                case Machine.JUMPop:
-                    CP = d + content(r);
-                    break;
-                case Machine.JUMPIop:
-                    ST = ST - 1;
-                    CP = data[ST];
-                    break;
-                case Machine.JUMPIFop:
-                    ST = ST - 1;
-                    if (data[ST] == n) {
-                        CP = d + content(r);
-                    } else {
-                        CP = CP + 1;
+            }
+            machine.showStatus();
+            if (profile != null) {
+                profile.report(System.out);
+                if (profileName != null) {
+                    try {
+                        profile.write(profileName);
+                    } catch (java.io.IOException s) {
+                        System.err.println("Error writing profile: " + s);
                     }
-                    break;
-                case Machine.HALTop:
-                    status = HALTED;
-                    break;
+                }
             }
-            if ((CP < CB) || (CP >= CT)) {
-                status = FAILEDINVALIDCODEADDRESS;
+            if (heapStatistics) {
+                machine.getHeap().showStatistics(System.out);
             }
-        } while (status == RUNNING);
-    }
-
-// LOADING
-    static void loadObjectProgram(String objectName) {
-        // Loads the TAM object program into code store from the named file.
-
-        FileInputStream objectFile = null;
-        DataInputStream objectStream = null;
-
-        int addr;
-        boolean finished = false;
-
-        try {
-            objectFile = new FileInputStream(objectName);
-            objectStream = new DataInputStream(objectFile);
-
-            addr = Machine.CB;
-            while (!finished) {
-                Machine.code[addr] = Instruction.read(objectStream);
-                if (Machine.code[addr] == null) {
-                    finished = true;
-                } else {
-                    addr = addr + 1;
-                }
+            if (executionCounts != null) {
+                Superinstructions.reportSequences(image.words, executionCounts, 20);
             }
-            CT = addr;
-            objectFile.close();
-        } catch (FileNotFoundException s) {
-            CT = CB;
-            System.err.println("Error opening object file: " + s);
-        } catch (IOException s) {
-            CT = CB;
-            System.err.println("Error reading object file: " + s);
-        }
-    }
-
-// RUNNING
-    public static void main(String[] args) {
-        System.out.println("********** TAM Interpreter (Java Version 2.1) **********");
-
-        if (args.length == 1) {
-            objectName = args[0];
-        } else {
-            objectName = "obj.tam";
-        }
-
-        loadObjectProgram(objectName);
-        if (CT != CB) {
-            interpretProgram();
-            showStatus();
         }
     }
 }
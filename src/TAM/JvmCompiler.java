@@ -0,0 +1,422 @@
+package TAM;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Translates a loaded TAM program into a JVM class, so that HotSpot sees
+ * the real control flow of the program instead of the interpreter loop.
+ *
+ * <p>
+ * The code image is split into basic blocks. Every block becomes a static
+ * method holding straight-line Java code over the data store of a
+ * {@link TamMachine}, and returning the address of the next block to run.
+ * Blocks are selected through a label switch, split into chunks of at most
+ * 256 code addresses so that no generated method grows beyond the size the
+ * JIT compiler is willing to compile.
+ * </p>
+ *
+ * <p>
+ * The generated source is compiled in memory with the system Java compiler
+ * and defined as a hidden class of this package. When no system compiler is
+ * available (for example on a bare JRE), or compilation fails,
+ * {@link #compile(CodeImage)} returns <code>null</code> and the caller runs
+ * the interpreter instead. The caller initializes the registers before
+ * running the compiled program. A jump into the middle of a block, which
+ * can only happen through JUMPI or a computed closure address, hands the
+ * rest of the run over to <code>TamMachine.continueRun</code>. Run limits
+ * are checked once per block, so a run that exceeds its instruction budget
+ * stops at the start of the block that would take it over. The compiled
+ * class holds no state, so it can run on any number of machines at once.
+ * </p>
+ */
+public final class JvmCompiler {
+
+    private static final int CHUNK_BITS = 8,
+            CHUNK = 1 << CHUNK_BITS;
+
+    private final CodeImage image;
+    private final boolean[] leader;
+    private final StringBuilder source = new StringBuilder();
+
+    private JvmCompiler(CodeImage image) {
+        this.image = image;
+        this.leader = new boolean[image.size + 1];
+    }
+
+    /**
+     * Compiles the given code image into a JVM class that runs it on a
+     * machine loaded with the same image.
+     * @param image	the code image to compile.
+     * @return the compiled program, or <code>null</code> if it could not be
+     *         compiled.
+     */
+    @SuppressWarnings("unchecked")
+    public static Consumer<TamMachine> compile(CodeImage image) {
+        JvmCompiler compiler = new JvmCompiler(image);
+        compiler.findLeaders();
+        compiler.generate();
+        byte[] bytes = compiler.compileSource();
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                    .defineHiddenClass(bytes, true);
+            return (Consumer<TamMachine>) lookup.lookupClass().getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError s) {
+            System.err.println("Error loading compiled program: " + s);
+            return null;
+        }
+    }
+
+    // BASIC BLOCKS
+
+    private static boolean isConstantRegister(int r) {
+        return switch (r) {
+            case Machine.CBr, Machine.PBr, Machine.PTr, Machine.SBr -> true;
+            default -> false;
+        };
+    }
+
+    private static int constantRegister(int r) {
+        return switch (r) {
+            case Machine.CBr -> TamMachine.CB;
+            case Machine.PBr -> Machine.PB;
+            case Machine.PTr -> Machine.PT;
+            case Machine.SBr -> TamMachine.SB;
+            default -> 0;
+        };
+    }
+
+    private void mark(int addr) {
+        if ((addr >= Machine.CB) && (addr <= image.size)) {
+            leader[addr] = true;
+        }
+    }
+
+    // Marks the first instruction of every basic block: the entry point,
+    // every static jump or call target, every code address loaded as a
+    // closure, and every instruction following a transfer of control.
+    private void findLeaders() {
+        mark(Machine.CB);
+        for (int addr = Machine.CB; addr < image.size; addr++) {
+            long word = image.words[addr];
+            int op = CodeImage.op(word), r = CodeImage.r(word), d = CodeImage.d(word);
+            switch (op) {
+                case Machine.JUMPop, Machine.JUMPIFop:
+                    if (isConstantRegister(r)) {
+                        mark(d + constantRegister(r));
+                    }
+                    mark(addr + 1);
+                    break;
+                case Machine.CALLop:
+                    if (isConstantRegister(r) && (d + constantRegister(r) >= Machine.PB)) {
+                        break;
+                    }
+                    if (isConstantRegister(r)) {
+                        mark(d + constantRegister(r));
+                    }
+                    mark(addr + 1);
+                    break;
+                case Machine.LOADAop:
+                    if (r == Machine.CBr) {
+                        mark(d);
+                    }
+                    break;
+                case Machine.CALLIop, Machine.RETURNop, Machine.JUMPIop, Machine.HALTop:
+                    mark(addr + 1);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    // CODE GENERATION
+
+    private void generate() {
+        source.append("package TAM;\n\n")
+                .append("import static TAM.TamMachine.*;\n\n")
+                .append("final class CompiledProgram implements java.util.function.Consumer<TamMachine> {\n\n")
+                .append("  public void accept(TamMachine m) {\n")
+                .append("    int pc = ").append(Machine.CB).append(";\n")
+                .append("    do {\n")
+                .append("      pc = switch (pc >> ").append(CHUNK_BITS).append(") {\n");
+        int chunks = (image.size + CHUNK - 1) / CHUNK;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            source.append("        case ").append(chunk).append(" -> c").append(chunk).append("(m, pc);\n");
+        }
+        source.append("        default -> pc;\n")
+                .append("      };\n")
+                .append("      if ((pc < ").append(Machine.CB).append(") || (pc >= ").append(image.size).append(")) {\n")
+                .append("        m.status = FAILEDINVALIDCODEADDRESS;\n")
+                .append("      }\n")
+                .append("    } while (m.status == RUNNING);\n")
+                .append("    m.CP = pc;\n")
+                .append("    m.flushOutput();\n")
+                .append("  }\n\n");
+
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            source.append("  private static int c").append(chunk).append("(TamMachine m, int pc) {\n")
+                    .append("    switch (pc) {\n");
+            int last = Math.min((chunk + 1) * CHUNK, image.size);
+            for (int addr = chunk * CHUNK; addr < last; addr++) {
+                if (leader[addr]) {
+                    source.append("      case ").append(addr).append(": return b").append(addr).append("(m);\n");
+                }
+            }
+            source.append("      default: return resume(m, pc);\n")
+                    .append("    }\n")
+                    .append("  }\n\n");
+        }
+
+        int addr = Machine.CB;
+        while (addr < image.size) {
+            int start = addr;
+            source.append("  private static int b").append(addr).append("(TamMachine m) {\n")
+                    .append("    final int[] data = m.data;\n");
+            int body = source.length();
+            boolean open;
+            do {
+                open = generateInstruction(addr);
+                addr++;
+            } while (open && !leader[addr] && (addr < image.size));
+            // The whole block is charged against the instruction budget
+            // before it starts.
+            source.insert(body, "    if (((m.fuel = m.fuel - " + (addr - start) + ") < 0) && !m.refuel(" + start
+                    + ", " + (addr - start) + ")) return " + start + ";\n");
+            if (open) {
+                source.append("    return ").append(addr).append(";\n");
+            }
+            source.append("  }\n\n");
+        }
+
+        source.append("  private static int resume(TamMachine m, int pc) {\n")
+                .append("    if ((pc >= ").append(Machine.CB).append(") && (pc < ").append(image.size).append(")) {\n")
+                .append("      m.CP = pc;\n")
+                .append("      m.continueRun();\n")
+                .append("      return m.CP;\n")
+                .append("    }\n")
+                .append("    return pc;\n")
+                .append("  }\n\n")
+                .append("  private static void copy(int[] data, int from, int to, int n) {\n")
+                .append("    System.arraycopy(data, from, data, to, n);\n")
+                .append("  }\n")
+                .append("}\n");
+    }
+
+    // Returns the Java expression for d + content(r).
+    private static String address(int r, int d) {
+        if (isConstantRegister(r)) {
+            return Integer.toString(d + constantRegister(r));
+        }
+        String base = switch (r) {
+            case Machine.STr -> "m.ST";
+            case Machine.LBr -> "m.LB";
+            case Machine.HTr -> "m.HT";
+            default -> "m.content(" + r + ")";
+        };
+        return "(" + d + " + " + base + ")";
+    }
+
+    private void line(String text) {
+        source.append("    ").append(text).append('\n');
+    }
+
+    private void checkStatus(int next) {
+        line("if (m.status != RUNNING) return " + next + ";");
+    }
+
+    // Generates the code for the instruction at addr. Returns false if the
+    // instruction ends its block with an explicit return.
+    private boolean generateInstruction(int addr) {
+        long word = image.words[addr];
+        int op = CodeImage.op(word), r = CodeImage.r(word),
+                n = CodeImage.n(word), d = CodeImage.d(word);
+        int next = addr + 1;
+
+        switch (op) {
+            case Machine.LOADop:
+                line("{ int a = " + address(r, d) + "; m.checkSpace(" + n + ");");
+                if (n == 1) {
+                    line("  data[m.ST] = data[a]; m.ST = m.ST + 1; }");
+                } else {
+                    line("  copy(data, a, m.ST, " + n + "); m.ST = m.ST + " + n + "; }");
+                }
+                checkStatus(next);
+                return true;
+            case Machine.LOADAop:
+                line("{ int a = " + address(r, d) + "; m.checkSpace(1); data[m.ST] = a; m.ST = m.ST + 1; }");
+                checkStatus(next);
+                return true;
+            case Machine.LOADIop:
+                line("{ m.ST = m.ST - 1; int a = data[m.ST]; m.checkSpace(" + n + "); copy(data, a, m.ST, " + n + "); m.ST = m.ST + " + n + "; }");
+                checkStatus(next);
+                return true;
+            case Machine.LOADLop:
+                line("m.checkSpace(1); data[m.ST] = " + d + "; m.ST = m.ST + 1;");
+                checkStatus(next);
+                return true;
+            case Machine.STOREop:
+                line("{ int a = " + address(r, d) + "; m.ST = m.ST - " + n + "; copy(data, m.ST, a, " + n + "); }");
+                return true;
+            case Machine.STOREIop:
+                line("{ m.ST = m.ST - 1; int a = data[m.ST]; m.ST = m.ST - " + n + "; copy(data, m.ST, a, " + n + "); }");
+                return true;
+            case Machine.CALLop:
+                if (isConstantRegister(r) && (d + constantRegister(r) >= Machine.PB)) {
+                    return generatePrimitive(d + constantRegister(r) - Machine.PB, next);
+                }
+                line("{ int a = " + address(r, d) + ";");
+                line("  if (a >= " + Machine.PB + ") { m.callPrimitive(a - " + Machine.PB + "); return " + next + "; }");
+                line("  m.checkSpace(3);");
+                if ((0 <= n) && (n <= 15)) {
+                    line("  data[m.ST] = " + address(n, 0) + ";");
+                } else {
+                    line("  m.status = FAILEDINVALIDINSTRUCTION;");
+                }
+                line("  m.enterFrame(" + n + ", data[m.ST]);");
+                line("  data[m.ST + 1] = m.LB; data[m.ST + 2] = " + next + "; m.LB = m.ST; m.ST = m.ST + 3;");
+                line("  return a; }");
+                return false;
+            case Machine.CALLIop:
+                line("{ m.ST = m.ST - 2; int a = data[m.ST + 1];");
+                line("  if (a >= " + Machine.PB + ") { m.callPrimitive(a - " + Machine.PB + "); return " + next + "; }");
+                line("  m.enterFrame(-1, data[m.ST]);");
+                line("  data[m.ST + 1] = m.LB; data[m.ST + 2] = " + next + "; m.LB = m.ST; m.ST = m.ST + 3;");
+                line("  return a; }");
+                return false;
+            case Machine.RETURNop:
+                line("{ int a = m.LB - " + d + "; int ra = data[m.LB + 2]; m.LB = data[m.LB + 1]; m.leaveFrame();");
+                line("  m.ST = m.ST - " + n + "; copy(data, m.ST, a, " + n + "); m.ST = a + " + n + ";");
+                line("  return ra; }");
+                return false;
+            case Machine.PUSHop:
+                line("m.checkSpace(" + d + "); m.ST = m.ST + " + d + ";");
+                checkStatus(next);
+                return true;
+            case Machine.POPop:
+                line("{ int a = m.ST - " + (n + d) + "; m.ST = m.ST - " + n + "; copy(data, m.ST, a, " + n + "); m.ST = a + " + n + "; }");
+                return true;
+            case Machine.JUMPop:
+                line("return " + address(r, d) + ";");
+                return false;
+            case Machine.JUMPIop:
+                line("m.ST = m.ST - 1; return data[m.ST];");
+                return false;
+            case Machine.JUMPIFop:
+                line("m.ST = m.ST - 1;");
+                line("return (data[m.ST] == " + n + ") ? " + address(r, d) + " : " + next + ";");
+                return false;
+            case Machine.HALTop:
+                line("m.status = HALTED; return " + addr + ";");
+                return false;
+            default:
+                line("m.status = FAILEDINVALIDINSTRUCTION; return " + addr + ";");
+                return false;
+        }
+    }
+
+    private boolean generatePrimitive(int displacement, int next) {
+        switch (displacement) {
+            case Machine.idDisplacement:
+                return true;
+            case Machine.notDisplacement:
+                line("data[m.ST - 1] = toInt(!isTrue(data[m.ST - 1]));");
+                return true;
+            case Machine.succDisplacement:
+                line("data[m.ST - 1] = m.overflowChecked(data[m.ST - 1] + 1);");
+                break;
+            case Machine.predDisplacement:
+                line("data[m.ST - 1] = m.overflowChecked(data[m.ST - 1] - 1);");
+                break;
+            case Machine.addDisplacement:
+                line("m.ST = m.ST - 1; data[m.ST - 1] = m.overflowChecked((long) data[m.ST - 1] + data[m.ST]);");
+                break;
+            case Machine.subDisplacement:
+                line("m.ST = m.ST - 1; data[m.ST - 1] = m.overflowChecked((long) data[m.ST - 1] - data[m.ST]);");
+                break;
+            case Machine.multDisplacement:
+                line("m.ST = m.ST - 1; data[m.ST - 1] = m.overflowChecked((long) data[m.ST - 1] * data[m.ST]);");
+                break;
+            case Machine.ltDisplacement:
+                line("m.ST = m.ST - 1; data[m.ST - 1] = toInt(data[m.ST - 1] < data[m.ST]);");
+                return true;
+            case Machine.leDisplacement:
+                line("m.ST = m.ST - 1; data[m.ST - 1] = toInt(data[m.ST - 1] <= data[m.ST]);");
+                return true;
+            case Machine.geDisplacement:
+                line("m.ST = m.ST - 1; data[m.ST - 1] = toInt(data[m.ST - 1] >= data[m.ST]);");
+                return true;
+            case Machine.gtDisplacement:
+                line("m.ST = m.ST - 1; data[m.ST - 1] = toInt(data[m.ST - 1] > data[m.ST]);");
+                return true;
+            default:
+                line("m.callPrimitive(" + displacement + ");");
+                break;
+        }
+        checkStatus(next);
+        return true;
+    }
+
+    // IN-MEMORY COMPILATION
+
+    private byte[] compileSource() {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            System.err.println("No system Java compiler available, interpreting instead.");
+            return null;
+        }
+        ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+        JavaFileObject sourceFile = new SimpleJavaFileObject(
+                URI.create("string:///TAM/CompiledProgram.java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        StandardJavaFileManager standard = javac.getStandardFileManager(null, null, null);
+        JavaFileManager fileManager = new ForwardingJavaFileManager<>(standard) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(JavaFileManager.Location location,
+                    String className, JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(
+                        URI.create("bytes:///" + className.replace('.', '/') + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        return classBytes;
+                    }
+                };
+            }
+        };
+        List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"),
+                "-proc:none", "-g:none", "-nowarn");
+        boolean compiled = javac.getTask(null, fileManager, null, options, null,
+                List.of(sourceFile)).call();
+        try {
+            fileManager.close();
+        } catch (IOException s) {
+            // nothing left to release
+        }
+        if (!compiled) {
+            System.err.println("Error compiling TAM program, interpreting instead.");
+            return null;
+        }
+        return classBytes.toByteArray();
+    }
+}
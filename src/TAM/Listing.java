@@ -0,0 +1,273 @@
+package TAM;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The disassembly of a TAM program, as one record per instruction.
+ *
+ * <p>
+ * A listing is built with one pass over the code, which finds the
+ * addresses that are the targets of jumps and the first instructions of
+ * routines, and gives each of them a label: the routine's name when the
+ * object file records it as an entry point, and <code>L</code> followed by
+ * the address otherwise. The records themselves, and their text, are only
+ * made when they are first asked for, so that a view showing a few lines
+ * of a long program formats just those lines.
+ * </p>
+ *
+ * @see Disassembler
+ */
+public final class Listing {
+
+    private final CodeImage image;
+    private final BitSet targets = new BitSet();
+    private final BitSet routines = new BitSet();
+    private final Map<Integer, String> names = new HashMap<>();
+    private final Line[] lines;
+
+    /**
+     * One disassembled instruction.
+     */
+    public static final class Line {
+
+        private final int address;
+        private final int op, r, n, d;
+        private final String text;
+        private final String label;
+        private final boolean routineStart;
+        private final int target;
+        private final String targetLabel;
+
+        private Line(Listing listing, int address) {
+            long word = listing.image.words[address];
+            this.address = address;
+            this.op = CodeImage.op(word);
+            this.r = CodeImage.r(word);
+            this.n = CodeImage.n(word);
+            this.d = CodeImage.d(word);
+            Instruction instr = new Instruction();
+            instr.op = op;
+            instr.r = r;
+            instr.n = n;
+            instr.d = d;
+            StringBuilder out = new StringBuilder();
+            Disassembler.writeInstruction(out, instr);
+            this.text = out.toString();
+            this.label = listing.getLabel(address);
+            this.routineStart = listing.isRoutineStart(address);
+            this.target = targetOf(word);
+            this.targetLabel = (target >= 0) ? listing.getLabel(target) : null;
+        }
+
+        /**
+         * Returns the address of the instruction.
+         */
+        public int getAddress() {
+            return address;
+        }
+
+        /**
+         * Returns the operation code of the instruction.
+         */
+        public int getOp() {
+            return op;
+        }
+
+        /**
+         * Returns the register field of the instruction.
+         */
+        public int getR() {
+            return r;
+        }
+
+        /**
+         * Returns the length field of the instruction.
+         */
+        public int getN() {
+            return n;
+        }
+
+        /**
+         * Returns the operand field of the instruction.
+         */
+        public int getD() {
+            return d;
+        }
+
+        /**
+         * Returns the instruction in assembly-code format, without its
+         * address.
+         */
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * Returns the label of the instruction, or null if nothing refers
+         * to it.
+         */
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * Returns true if the instruction is the first of a routine.
+         */
+        public boolean isRoutineStart() {
+            return routineStart;
+        }
+
+        /**
+         * Returns the code address the instruction jumps to, calls or
+         * loads, or -1 if it refers to none.
+         */
+        public int getTarget() {
+            return target;
+        }
+
+        /**
+         * Returns the label of the target of the instruction, or null if it
+         * has none.
+         */
+        public String getTargetLabel() {
+            return targetLabel;
+        }
+
+        /**
+         * Returns the line as the disassembler writes it: the address, two
+         * spaces and the instruction.
+         */
+        @Override
+        public String toString() {
+            return address + ":  " + text;
+        }
+    }
+
+    /**
+     * Makes the listing of a code image, whose routines have no names.
+     * @param image	the code.
+     */
+    public Listing(CodeImage image) {
+        this(image, null);
+    }
+
+    /**
+     * Makes the listing of an object program, naming its routines after
+     * its entry points. The program should be linked.
+     * @param object	the object program.
+     * @see ObjectFile#link
+     */
+    public Listing(ObjectFile object) {
+        this(object.getImage(), object);
+    }
+
+    private Listing(CodeImage image, ObjectFile object) {
+        this.image = image;
+        this.lines = new Line[image.size];
+        for (int addr = Machine.CB; addr < image.size; addr++) {
+            long word = image.words[addr];
+            int target = targetOf(word);
+            if ((target < 0) || (target >= image.size)) {
+                continue;
+            }
+            if (CodeImage.op(word) == Machine.JUMPop || CodeImage.op(word) == Machine.JUMPIFop) {
+                targets.set(target);
+            } else {
+                routines.set(target);
+            }
+        }
+        if (object != null) {
+            // A name used by more than one routine, as nested routines may
+            // be, is given the address of each but the first.
+            Set<String> used = new HashSet<>();
+            for (int index = 0; index < object.getEntryPointCount(); index++) {
+                int address = object.getEntryPointAddress(index);
+                if ((address < Machine.CB) || (address >= image.size) || names.containsKey(address)) {
+                    continue;
+                }
+                String name = object.getEntryPointName(index);
+                names.put(address, used.add(name) ? name : name + "_" + address);
+                routines.set(address);
+            }
+        }
+    }
+
+    /**
+     * Reads an object file, links it with the libraries it uses and makes
+     * its listing.
+     * @param file	the object file.
+     * @return the listing.
+     * @throws IOException if the file or a library cannot be read or
+     *         linked.
+     * @see CodeImage#read
+     */
+    public static Listing read(Path file) throws IOException {
+        return new Listing(ObjectFile.read(file).link(file.toAbsolutePath().getParent()));
+    }
+
+    // Returns the code address an instruction refers to, or -1.
+    private static int targetOf(long word) {
+        if (CodeImage.r(word) != Machine.CBr) {
+            return -1;
+        }
+        switch (CodeImage.op(word)) {
+            case Machine.JUMPop:
+            case Machine.JUMPIFop:
+            case Machine.CALLop:
+            case Machine.LOADAop:
+                return CodeImage.d(word);
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Returns the address one past the last instruction (CT).
+     */
+    public int size() {
+        return image.size;
+    }
+
+    /**
+     * Returns the record of the instruction at the given address, making it
+     * the first time it is asked for.
+     * @param address	the address, from CB up to {@link #size}.
+     */
+    public Line getLine(int address) {
+        Line line = lines[address];
+        if (line == null) {
+            line = new Line(this, address);
+            lines[address] = line;
+        }
+        return line;
+    }
+
+    /**
+     * Returns the label of the given address, or null if no instruction
+     * refers to it and it is not an entry point.
+     * @param address	the code address.
+     */
+    public String getLabel(int address) {
+        String name = names.get(address);
+        if (name != null) {
+            return name;
+        }
+        return (targets.get(address) || routines.get(address)) ? "L" + address : null;
+    }
+
+    /**
+     * Returns true if the given address is the first instruction of a
+     * routine: an entry point, or the target of a call or of a routine
+     * address.
+     * @param address	the code address.
+     */
+    public boolean isRoutineStart(int address) {
+        return routines.get(address);
+    }
+}
@@ -24,7 +24,7 @@ public final class Machine {
     //  type
     //    Word = -32767..+32767; {16 bits signed}
     //    DoubleWord = -2147483648..+2147483647; {32 bits signed}
-    //    CodeAddress = 0..+32767; {15 bits unsigned}
+    //    CodeAddress = 0..+1048575; {20 bits unsigned}
     //    DataAddress = 0..+32767; {15 bits unsigned}
     // INSTRUCTIONS
     // Operation codes
@@ -45,12 +45,13 @@ public final class Machine {
             HALTop = 15;
 
     // CODE STORE
+    // The code array grows as the encoder fills it, up to PB instructions.
     public static Instruction[] code = new Instruction[1024];
 
     // CODE STORE REGISTERS
     public final static int CB = 0,
-            PB = 1024, // = upper bound of code array + 1
-            PT = 1052;  // = PB + 28
+            PB = 1048576, // = upper bound of the code address space + 1
+            PT = 1048604;  // = PB + 28
 
     // REGISTER NUMBERS
     public final static int CBr = 0,
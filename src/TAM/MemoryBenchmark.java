@@ -0,0 +1,167 @@
+package TAM;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * A benchmark of the TAM instructions that move or compare multi-word
+ * values, for value sizes from 1 to 255 words.
+ *
+ * <p>
+ * For each kernel and size, a small program repeats the kernel in a
+ * counted loop on a {@link TamMachine}. The program is run a number of
+ * times, 20 by default, after 10 runs to warm up, and the time per
+ * repetition is written as comma-separated values under the header
+ * <code>kernel,size,ns</code>. The loop overhead is the same for every
+ * size, so the growth of the time with the size shows the cost per word.
+ * </p>
+ *
+ * <pre>
+ *   java TAM.MemoryBenchmark [-all] [-runs=N]
+ * </pre>
+ *
+ * <p>
+ * By default the sizes 1 to 8 and the powers of two up to 255 are
+ * measured; <code>-all</code> measures every size.
+ * </p>
+ */
+public final class MemoryBenchmark {
+
+    // The repetitions per run, within the range of a TAM integer.
+    private final static int REPETITIONS = 10000;
+
+    // The runs before measuring, to let the JIT compiler settle.
+    private final static int WARMUPRUNS = 10;
+
+    private final static String[] KERNELS = {"LOAD", "STORE", "LOADI", "STOREI", "POP", "RETURN", "eq"};
+
+    // The code under construction.
+    private final Instruction[] code = new Instruction[Machine.code.length];
+    private int next;
+
+    private MemoryBenchmark() {
+    }
+
+    private void emit(int op, int n, int r, int d) {
+        Instruction instr = new Instruction();
+        instr.op = op;
+        instr.n = n;
+        instr.r = r;
+        instr.d = d;
+        code[next++] = instr;
+    }
+
+    // Builds a program that runs the given kernel on values of n words
+    // REPETITIONS times. The loop counter lives at 0[SB], and the
+    // values the kernel works on just above it.
+    private CodeImage program(String kernel, int n) {
+        next = Machine.CB;
+        emit(Machine.PUSHop, 0, 0, 1 + 2 * n);
+        emit(Machine.LOADLop, 0, 0, REPETITIONS);
+        emit(Machine.STOREop, 1, Machine.SBr, 0);
+        int loop = next;
+        int routine = -1;
+        switch (kernel) {
+            case "LOAD":
+                emit(Machine.LOADop, n, Machine.SBr, 1);
+                emit(Machine.POPop, 0, 0, n);
+                break;
+            case "STORE":
+                emit(Machine.PUSHop, 0, 0, n);
+                emit(Machine.STOREop, n, Machine.SBr, 1);
+                break;
+            case "LOADI":
+                emit(Machine.LOADAop, 0, Machine.SBr, 1);
+                emit(Machine.LOADIop, n, 0, 0);
+                emit(Machine.POPop, 0, 0, n);
+                break;
+            case "STOREI":
+                emit(Machine.PUSHop, 0, 0, n);
+                emit(Machine.LOADAop, 0, Machine.SBr, 1);
+                emit(Machine.STOREIop, n, 0, 0);
+                break;
+            case "POP":
+                // Moves n words down over one, the overlapping case.
+                emit(Machine.PUSHop, 0, 0, n + 1);
+                emit(Machine.POPop, n, 0, 1);
+                emit(Machine.POPop, 0, 0, n);
+                break;
+            case "RETURN":
+                routine = next;
+                emit(Machine.CALLop, Machine.SBr, Machine.CBr, 0);
+                emit(Machine.POPop, 0, 0, n);
+                break;
+            case "eq":
+                // Two equal values of zeros, with the word the result
+                // overwrites cleared first.
+                emit(Machine.PUSHop, 0, 0, 2 * n);
+                emit(Machine.LOADLop, 0, 0, 0);
+                emit(Machine.STOREop, 1, Machine.STr, -(2 * n + 1));
+                emit(Machine.LOADLop, 0, 0, n);
+                emit(Machine.CALLop, Machine.SBr, Machine.PBr, Machine.eqDisplacement);
+                emit(Machine.POPop, 0, 0, 1);
+                break;
+        }
+        emit(Machine.LOADop, 1, Machine.SBr, 0);
+        emit(Machine.CALLop, Machine.SBr, Machine.PBr, Machine.predDisplacement);
+        emit(Machine.STOREop, 1, Machine.SBr, 0);
+        emit(Machine.LOADop, 1, Machine.SBr, 0);
+        emit(Machine.JUMPIFop, 0, Machine.CBr, next + 2);
+        emit(Machine.JUMPop, 0, Machine.CBr, loop);
+        emit(Machine.HALTop, 0, 0, 0);
+        if (routine >= 0) {
+            // The routine returns n words of its frame.
+            code[routine].d = next;
+            emit(Machine.PUSHop, 0, 0, n);
+            emit(Machine.RETURNop, n, 0, 0);
+        }
+        return new CodeImage(code, next);
+    }
+
+    // Returns the time per repetition of the kernel over the given number
+    // of runs, in nanoseconds.
+    private double measure(String kernel, int n, int runs) {
+        CodeImage image = program(kernel, n);
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+        TamMachine machine = new TamMachine(image, new ByteArrayInputStream(new byte[0]), sink,
+                TamMachine.DEFAULTSTORESIZE);
+        for (int run = 0; run < WARMUPRUNS; run++) {
+            machine.run();
+        }
+        long start = System.nanoTime();
+        for (int run = 0; run < runs; run++) {
+            machine.run();
+        }
+        long time = System.nanoTime() - start;
+        if (machine.getStatus() != TamMachine.HALTED) {
+            throw new IllegalStateException(kernel + " " + n + " failed with status "
+                    + machine.getStatus());
+        }
+        return (double) time / ((long) runs * REPETITIONS);
+    }
+
+    public static void main(String[] args) {
+        boolean all = false;
+        int runs = 20;
+        for (String arg : args) {
+            if (arg.equals("-all")) {
+                all = true;
+            } else if (arg.startsWith("-runs=")) {
+                runs = Integer.parseInt(arg.substring(6));
+            }
+        }
+
+        MemoryBenchmark benchmark = new MemoryBenchmark();
+        System.out.println("kernel,size,ns");
+        for (String kernel : KERNELS) {
+            for (int n = 1; n <= 255; n = (all || n < 8) ? n + 1 : Math.min(2 * n, 255)) {
+                System.out.println(String.format("%s,%d,%.1f", kernel, n,
+                        benchmark.measure(kernel, n, runs)));
+                if (n == 255) {
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,617 @@
+package TAM;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A TAM object program as stored in an object file: the code image, and
+ * optionally the entry points of its routines and the source lines of its
+ * instructions.
+ *
+ * <p>
+ * An object file starts with a 16-byte header: the four bytes
+ * <code>TAMO</code>, a 16-bit version, 16 bits of flags, the number of
+ * instructions and the CRC-32 checksum of the rest of the file. The
+ * instructions follow, each packed into one 32-bit word:
+ * </p>
+ * <pre>
+ *   bits 28..31  op
+ *   bits 24..27  r
+ *   bits 16..23  n
+ *   bits  0..15  d  (signed)
+ * </pre>
+ * <p>
+ * If any instruction does not fit, the WIDE flag is set and each
+ * instruction takes 64 bits, laid out as in a {@link CodeImage}. Sections
+ * follow the instructions to the end of the file, each a four-byte tag,
+ * its length in bytes and its contents; a reader skips the sections it
+ * does not know. The ENTR section holds the routine entry points, each an
+ * address, the length of the name and the name in UTF-8. The LINE section
+ * holds pairs of an address and the source line of the instructions from
+ * it up to the next pair. All integers are big-endian.
+ * </p>
+ *
+ * <p>
+ * A library, flagged LIBRARY, holds routines compiled separately to be
+ * linked into programs. Its INTF section is the Triangle text of the
+ * declarations it exports, its EXPT section the address and name of each
+ * exported routine, as in ENTR, and its RELO section the address of every
+ * instruction whose operand is a CB-relative code address. A program that
+ * uses libraries has a LIBS section, with the checksum of the interface
+ * each library had when the program was compiled and the length and path
+ * of the library, and an IMPT section, with the address of each
+ * instruction that refers to a library routine, the number of the library
+ * from 0 and the length and name of the routine. Files with none of these
+ * are written as version 1.
+ * </p>
+ *
+ * <p>
+ * A file that does not start with <code>TAMO</code> is read in the legacy
+ * format written by {@link Instruction#write}, of four 32-bit integers per
+ * instruction and nothing else.
+ * </p>
+ */
+public final class ObjectFile {
+
+    private final static int MAGIC = 0x54414D4F; // "TAMO"
+    private final static int VERSION = 2;
+    // The version of files that need no linking, which readers from before
+    // libraries can still load.
+    private final static int UNLINKEDVERSION = 1;
+    private final static int HEADERSIZE = 16;
+
+    // The flag of files whose instructions take 64 bits each.
+    private final static int WIDE = 1;
+    // The flag of library files.
+    private final static int LIBRARY = 2;
+
+    private final static int ENTRYSECTION = 0x454E5452; // "ENTR"
+    private final static int LINESECTION = 0x4C494E45; // "LINE"
+    private final static int INTERFACESECTION = 0x494E5446; // "INTF"
+    private final static int EXPORTSECTION = 0x45585054; // "EXPT"
+    private final static int RELOCATIONSECTION = 0x52454C4F; // "RELO"
+    private final static int LIBRARYSECTION = 0x4C494253; // "LIBS"
+    private final static int IMPORTSECTION = 0x494D5054; // "IMPT"
+
+    // Files at least this long are mapped rather than read.
+    private final static long MAPPINGTHRESHOLD = 1 << 16;
+
+    private final CodeImage image;
+    private final List<String> entryNames = new ArrayList<>();
+    private final List<Integer> entryAddresses = new ArrayList<>();
+    private final List<Integer> lineAddresses = new ArrayList<>();
+    private final List<Integer> lines = new ArrayList<>();
+
+    // The interface of a library, or null if this is a program.
+    private String interfaceText;
+    private final List<String> exportNames = new ArrayList<>();
+    private final List<Integer> exportAddresses = new ArrayList<>();
+    private final List<Integer> relocations = new ArrayList<>();
+    private final List<String> libraryPaths = new ArrayList<>();
+    private final List<Integer> libraryChecksums = new ArrayList<>();
+    private final List<Integer> importAddresses = new ArrayList<>();
+    private final List<Integer> importLibraries = new ArrayList<>();
+    private final List<String> importNames = new ArrayList<>();
+
+    /**
+     * Creates an object program of the given code and no entry points or
+     * lines.
+     * @param image	the code.
+     */
+    public ObjectFile(CodeImage image) {
+        this.image = image;
+    }
+
+    /**
+     * Returns the code of the program.
+     */
+    public CodeImage getImage() {
+        return image;
+    }
+
+    /**
+     * Records the entry point of a routine.
+     * @param name	the name of the routine.
+     * @param address	the address of its first instruction.
+     */
+    public void addEntryPoint(String name, int address) {
+        entryNames.add(name);
+        entryAddresses.add(address);
+    }
+
+    /**
+     * Returns the number of entry points recorded.
+     */
+    public int getEntryPointCount() {
+        return entryNames.size();
+    }
+
+    /**
+     * Returns the name of the routine of an entry point.
+     * @param index	the number of the entry point, from 0.
+     */
+    public String getEntryPointName(int index) {
+        return entryNames.get(index);
+    }
+
+    /**
+     * Returns the address of an entry point.
+     * @param index	the number of the entry point, from 0.
+     */
+    public int getEntryPointAddress(int index) {
+        return entryAddresses.get(index);
+    }
+
+    /**
+     * Records the source line of the instructions from the given address
+     * on. Addresses must be recorded in increasing order; a line recorded
+     * again for the last address replaces it.
+     * @param address	the address of the first instruction of the line.
+     * @param line	the source line number.
+     */
+    public void addLine(int address, int line) {
+        int last = lineAddresses.size() - 1;
+        if ((last >= 0) && (lineAddresses.get(last) == address)) {
+            lines.set(last, line);
+        } else if ((last < 0) || (lines.get(last) != line)) {
+            lineAddresses.add(address);
+            lines.add(line);
+        }
+    }
+
+    /**
+     * Returns the source line of the instruction at the given address, or 0
+     * if it is not known.
+     * @param address	the address of the instruction.
+     */
+    public int lineAt(int address) {
+        int low = 0, high = lineAddresses.size() - 1, line = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (lineAddresses.get(middle) <= address) {
+                line = lines.get(middle);
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return line;
+    }
+
+// LIBRARIES
+    /**
+     * Makes this object a library.
+     * @param text	the Triangle text of the declarations it exports.
+     */
+    public void setInterface(String text) {
+        interfaceText = text;
+    }
+
+    /**
+     * Returns true if this object is a library rather than a program.
+     */
+    public boolean isLibrary() {
+        return interfaceText != null;
+    }
+
+    /**
+     * Returns the Triangle text of the declarations a library exports, or
+     * <code>null</code> if this is a program.
+     */
+    public String getInterface() {
+        return interfaceText;
+    }
+
+    /**
+     * Returns the CRC-32 checksum of a library's interface, which a
+     * program compiled against it must match when linked.
+     */
+    public int getInterfaceChecksum() {
+        CRC32 crc = new CRC32();
+        crc.update(interfaceText.getBytes(StandardCharsets.UTF_8));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Records a routine a library exports.
+     * @param name	the name of the routine.
+     * @param address	the address of its first instruction.
+     */
+    public void addExport(String name, int address) {
+        exportNames.add(name);
+        exportAddresses.add(address);
+    }
+
+    /**
+     * Records an instruction of a library whose operand is a CB-relative
+     * code address, to be moved with the library when it is linked.
+     * @param address	the address of the instruction.
+     */
+    public void addRelocation(int address) {
+        relocations.add(address);
+    }
+
+    /**
+     * Records a library a program uses.
+     * @param path	the path of the library, relative to the directory of
+     *			the program's object file.
+     * @param checksum	the checksum of the library's interface.
+     * @return the number of the library, from 0.
+     */
+    public int addLibrary(String path, int checksum) {
+        libraryPaths.add(path);
+        libraryChecksums.add(checksum);
+        return libraryPaths.size() - 1;
+    }
+
+    /**
+     * Records an instruction of a program that refers to a library
+     * routine. Linking adds the address of the routine to the d field of
+     * the instruction.
+     * @param address	the address of the instruction.
+     * @param library	the number of the library.
+     * @param name	the name of the routine.
+     */
+    public void addImport(int address, int library, String name) {
+        importAddresses.add(address);
+        importLibraries.add(library);
+        importNames.add(name);
+    }
+
+    /**
+     * Links a program with the libraries it uses. Each library is read,
+     * checked against the interface the program was compiled with, and
+     * appended to the program's code, and the instructions that refer to
+     * its routines are patched.
+     * @param directory	the directory the paths of the libraries are
+     *			relative to.
+     * @return the linked program, with the entry points of the libraries
+     *         added, or this program if it uses no libraries.
+     * @throws IOException if a library cannot be read, has changed or lacks
+     *         a routine, or the linked program is too large.
+     */
+    public ObjectFile link(Path directory) throws IOException {
+        if (libraryPaths.isEmpty()) {
+            return this;
+        }
+        List<ObjectFile> libraries = new ArrayList<>();
+        long size = image.size;
+        for (int index = 0; index < libraryPaths.size(); index++) {
+            Path path = directory.resolve(libraryPaths.get(index));
+            ObjectFile library = read(path);
+            if (!library.isLibrary()) {
+                throw new IOException("Not a library: " + path);
+            }
+            if (library.getInterfaceChecksum() != libraryChecksums.get(index)) {
+                throw new IOException("Library changed since the program was compiled: " + path);
+            }
+            libraries.add(library);
+            size = size + library.image.size - Machine.CB;
+        }
+        if (size > Machine.PB) {
+            throw new IOException("Linked program too large for the code store");
+        }
+
+        long[] words = Arrays.copyOf(image.words, (int) size);
+        ObjectFile linked = new ObjectFile(new CodeImage(words));
+        linked.entryNames.addAll(entryNames);
+        linked.entryAddresses.addAll(entryAddresses);
+        linked.lineAddresses.addAll(lineAddresses);
+        linked.lines.addAll(lines);
+        List<Map<String, Integer>> exports = new ArrayList<>();
+        int base = image.size;
+        for (ObjectFile library : libraries) {
+            // library address addr is linked at addr + offset
+            int offset = base - Machine.CB;
+            System.arraycopy(library.image.words, Machine.CB, words, base, library.image.size - Machine.CB);
+            for (int addr : library.relocations) {
+                if ((addr < Machine.CB) || (addr >= library.image.size)) {
+                    throw new IOException("Corrupt library, bad relocation");
+                }
+                words[addr + offset] = displace(words[addr + offset], offset);
+            }
+            Map<String, Integer> routines = new HashMap<>();
+            for (int index = 0; index < library.exportNames.size(); index++) {
+                routines.put(library.exportNames.get(index), library.exportAddresses.get(index) + offset);
+            }
+            exports.add(routines);
+            for (int index = 0; index < library.entryNames.size(); index++) {
+                linked.addEntryPoint(library.entryNames.get(index), library.entryAddresses.get(index) + offset);
+            }
+            base = base + library.image.size - Machine.CB;
+        }
+
+        for (int index = 0; index < importAddresses.size(); index++) {
+            int addr = importAddresses.get(index), library = importLibraries.get(index);
+            if ((addr < Machine.CB) || (addr >= image.size) || (library < 0) || (library >= exports.size())) {
+                throw new IOException("Corrupt object file, bad import");
+            }
+            Integer address = exports.get(library).get(importNames.get(index));
+            if (address == null) {
+                throw new IOException("Routine " + importNames.get(index) + " not found in library "
+                        + libraryPaths.get(library));
+            }
+            words[addr] = displace(words[addr], address);
+        }
+        return linked;
+    }
+
+    // Adds to the d field of a packed instruction.
+    private static long displace(long word, int offset) {
+        return CodeImage.pack(CodeImage.op(word), CodeImage.r(word), CodeImage.n(word),
+                CodeImage.d(word) + offset);
+    }
+
+// READING
+    /**
+     * Reads an object file in either format. The file is read with one bulk
+     * read, or mapped if it is large, and decoded straight into the code
+     * image.
+     * @param file	the object file.
+     * @return the object program, of no instructions if the file is empty.
+     * @throws IOException if the file cannot be read, is corrupt, or holds
+     *         more instructions than the code store.
+     */
+    public static ObjectFile read(Path file) throws IOException {
+        ByteBuffer bytes;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length >= MAPPINGTHRESHOLD) {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            } else {
+                bytes = ByteBuffer.allocate((int) length);
+                while (bytes.hasRemaining() && (channel.read(bytes) >= 0)) {
+                    // until full or at the end of a file that shrank
+                }
+                bytes.flip();
+            }
+        }
+        if ((bytes.remaining() >= HEADERSIZE) && (bytes.getInt(0) == MAGIC)) {
+            return decode(bytes, file);
+        }
+        return decodeLegacy(bytes, file);
+    }
+
+    // Decodes a legacy file, of four integers per instruction, ignoring any
+    // bytes after the last whole instruction.
+    private static ObjectFile decodeLegacy(ByteBuffer bytes, Path file) throws IOException {
+        IntBuffer fields = bytes.asIntBuffer();
+        int count = checkCount(fields.remaining() / 4, file);
+        long[] words = new long[Machine.CB + count];
+        for (int addr = Machine.CB; addr < words.length; addr++) {
+            // op, r, n, d
+            words[addr] = CodeImage.pack(fields.get(), fields.get(), fields.get(), fields.get());
+        }
+        return new ObjectFile(new CodeImage(words));
+    }
+
+    private static ObjectFile decode(ByteBuffer bytes, Path file) throws IOException {
+        bytes.getInt();
+        int version = bytes.getShort() & 0xFFFF;
+        int flags = bytes.getShort() & 0xFFFF;
+        if ((version < UNLINKEDVERSION) || (version > VERSION)) {
+            throw new IOException("Unsupported object file version " + version + ": " + file);
+        }
+        int count = bytes.getInt();
+        int checksum = bytes.getInt();
+        CRC32 crc = new CRC32();
+        crc.update(bytes.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Corrupt object file, checksum mismatch: " + file);
+        }
+        int width = ((flags & WIDE) != 0) ? 8 : 4;
+        if ((count < 0) || ((long) count * width > bytes.remaining())) {
+            throw new IOException("Corrupt object file, truncated code: " + file);
+        }
+        checkCount(count, file);
+
+        long[] words = new long[Machine.CB + count];
+        for (int addr = Machine.CB; addr < words.length; addr++) {
+            if (width == 8) {
+                words[addr] = bytes.getLong();
+            } else {
+                int word = bytes.getInt();
+                words[addr] = CodeImage.pack(word >>> 28, (word >>> 24) & 0xF,
+                        (word >>> 16) & 0xFF, (short) word);
+            }
+        }
+        ObjectFile object = new ObjectFile(new CodeImage(words));
+        if ((flags & LIBRARY) != 0) {
+            object.interfaceText = "";
+        }
+
+        while (bytes.remaining() >= 8) {
+            int tag = bytes.getInt();
+            int length = bytes.getInt();
+            if ((length < 0) || (length > bytes.remaining())) {
+                throw new IOException("Corrupt object file, truncated section: " + file);
+            }
+            ByteBuffer section = bytes.slice();
+            section.limit(length);
+            bytes.position(bytes.position() + length);
+            try {
+                if (tag == ENTRYSECTION) {
+                    while (section.hasRemaining()) {
+                        int address = section.getInt();
+                        object.addEntryPoint(readName(section), address);
+                    }
+                } else if (tag == LINESECTION) {
+                    while (section.hasRemaining()) {
+                        object.lineAddresses.add(section.getInt());
+                        object.lines.add(section.getInt());
+                    }
+                } else if ((tag == INTERFACESECTION) && object.isLibrary()) {
+                    object.interfaceText = StandardCharsets.UTF_8.decode(section).toString();
+                } else if (tag == EXPORTSECTION) {
+                    while (section.hasRemaining()) {
+                        int address = section.getInt();
+                        object.addExport(readName(section), address);
+                    }
+                } else if (tag == RELOCATIONSECTION) {
+                    while (section.hasRemaining()) {
+                        object.addRelocation(section.getInt());
+                    }
+                } else if (tag == LIBRARYSECTION) {
+                    while (section.hasRemaining()) {
+                        int libraryChecksum = section.getInt();
+                        object.addLibrary(readName(section), libraryChecksum);
+                    }
+                } else if (tag == IMPORTSECTION) {
+                    while (section.hasRemaining()) {
+                        int address = section.getInt();
+                        int library = section.getInt();
+                        object.addImport(address, library, readName(section));
+                    }
+                }
+            } catch (RuntimeException s) {
+                throw new IOException("Corrupt object file, bad section: " + file);
+            }
+        }
+        return object;
+    }
+
+    // Reads a length and that many bytes of UTF-8.
+    private static String readName(ByteBuffer section) {
+        byte[] name = new byte[section.getInt()];
+        section.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private static int checkCount(int count, Path file) throws IOException {
+        if (count > Machine.PB - Machine.CB) {
+            throw new IOException("Object program too large for the code store: " + file);
+        }
+        return count;
+    }
+
+// WRITING
+    /**
+     * Writes the program to an object file in the current format.
+     * @param file	the object file.
+     * @throws IOException if the file cannot be written.
+     */
+    public void write(Path file) throws IOException {
+        boolean wide = false;
+        for (int addr = Machine.CB; addr < image.size; addr++) {
+            long word = image.words[addr];
+            int d = CodeImage.d(word);
+            wide = wide || (CodeImage.op(word) > 0xF) || (CodeImage.r(word) > 0xF)
+                    || (CodeImage.n(word) > 0xFF) || (d != (short) d);
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        for (int addr = Machine.CB; addr < image.size; addr++) {
+            long word = image.words[addr];
+            if (wide) {
+                out.writeLong(word);
+            } else {
+                out.writeInt((CodeImage.op(word) << 28) | (CodeImage.r(word) << 24)
+                        | (CodeImage.n(word) << 16) | (CodeImage.d(word) & 0xFFFF));
+            }
+        }
+        if (!entryNames.isEmpty()) {
+            ByteArrayOutputStream section = new ByteArrayOutputStream();
+            DataOutputStream entries = new DataOutputStream(section);
+            for (int index = 0; index < entryNames.size(); index++) {
+                entries.writeInt(entryAddresses.get(index));
+                writeName(entries, entryNames.get(index));
+            }
+            writeSection(out, ENTRYSECTION, section);
+        }
+        if (!lines.isEmpty()) {
+            ByteArrayOutputStream section = new ByteArrayOutputStream();
+            DataOutputStream pairs = new DataOutputStream(section);
+            for (int index = 0; index < lines.size(); index++) {
+                pairs.writeInt(lineAddresses.get(index));
+                pairs.writeInt(lines.get(index));
+            }
+            writeSection(out, LINESECTION, section);
+        }
+        if (isLibrary()) {
+            ByteArrayOutputStream section = new ByteArrayOutputStream();
+            section.write(interfaceText.getBytes(StandardCharsets.UTF_8));
+            writeSection(out, INTERFACESECTION, section);
+
+            section = new ByteArrayOutputStream();
+            DataOutputStream exports = new DataOutputStream(section);
+            for (int index = 0; index < exportNames.size(); index++) {
+                exports.writeInt(exportAddresses.get(index));
+                writeName(exports, exportNames.get(index));
+            }
+            writeSection(out, EXPORTSECTION, section);
+
+            section = new ByteArrayOutputStream();
+            DataOutputStream addresses = new DataOutputStream(section);
+            for (int addr : relocations) {
+                addresses.writeInt(addr);
+            }
+            writeSection(out, RELOCATIONSECTION, section);
+        }
+        if (!libraryPaths.isEmpty()) {
+            ByteArrayOutputStream section = new ByteArrayOutputStream();
+            DataOutputStream libraries = new DataOutputStream(section);
+            for (int index = 0; index < libraryPaths.size(); index++) {
+                libraries.writeInt(libraryChecksums.get(index));
+                writeName(libraries, libraryPaths.get(index));
+            }
+            writeSection(out, LIBRARYSECTION, section);
+
+            section = new ByteArrayOutputStream();
+            DataOutputStream imports = new DataOutputStream(section);
+            for (int index = 0; index < importAddresses.size(); index++) {
+                imports.writeInt(importAddresses.get(index));
+                imports.writeInt(importLibraries.get(index));
+                writeName(imports, importNames.get(index));
+            }
+            writeSection(out, IMPORTSECTION, section);
+        }
+        out.flush();
+
+        byte[] contents = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(contents);
+        ByteBuffer header = ByteBuffer.allocate(HEADERSIZE);
+        header.putInt(MAGIC);
+        boolean linking = isLibrary() || !libraryPaths.isEmpty();
+        header.putShort((short) (linking ? VERSION : UNLINKEDVERSION));
+        header.putShort((short) ((wide ? WIDE : 0) | (isLibrary() ? LIBRARY : 0)));
+        header.putInt(image.size - Machine.CB);
+        header.putInt((int) crc.getValue());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            header.flip();
+            ByteBuffer[] buffers = {header, ByteBuffer.wrap(contents)};
+            while (buffers[1].hasRemaining()) {
+                channel.write(buffers);
+            }
+        }
+    }
+
+    // Writes the length and UTF-8 bytes of a name.
+    private static void writeName(DataOutputStream out, String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeSection(DataOutputStream out, int tag, ByteArrayOutputStream section)
+            throws IOException {
+        out.writeInt(tag);
+        out.writeInt(section.size());
+        section.writeTo(out);
+    }
+}
@@ -0,0 +1,201 @@
+package TAM;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An exact execution profile of one run of a TAM program.
+ *
+ * <p>
+ * A machine given a profile counts every instruction it executes by code
+ * address, every call of each primitive routine, and every call of each
+ * routine, identified by its entry address. A shadow call stack kept
+ * through CALL, CALLI and RETURN gives each routine its inclusive count,
+ * of the instructions executed from its entry to its return including
+ * the routines it calls, and its exclusive count, without them. The main
+ * program counts as a routine entered at CB. A recursive routine's
+ * inclusive count only covers its outermost activations.
+ * </p>
+ *
+ * <p>
+ * Superinstructions are not used while profiling, so that every
+ * instruction is counted where it is.
+ * </p>
+ */
+public final class Profile {
+
+    private final CodeImage image;
+
+    // Executions per code address, counted by the dispatch loop.
+    final long[] counts;
+
+    private final long[] primitiveCalls = new long[Machine.indexCheckDisplacement + 1];
+
+    // Per routine, indexed by entry address.
+    private final long[] calls, inclusive, exclusive;
+    private final int[] active;
+
+    // The shadow call stack: the entry of each active routine, the number
+    // of instructions executed when it was entered, and the instructions
+    // executed by the routines it has called.
+    private int[] stackEntry = new int[64];
+    private long[] stackStart = new long[64], stackChildren = new long[64];
+    private int depth;
+
+    /**
+     * Creates an empty profile for the given code image.
+     * @param image	the program to profile.
+     */
+    public Profile(CodeImage image) {
+        this.image = image;
+        counts = new long[image.size];
+        calls = new long[image.size];
+        inclusive = new long[image.size];
+        exclusive = new long[image.size];
+        active = new int[image.size];
+    }
+
+    // Starts the profile of a run, with the main program entered.
+    void start() {
+        depth = 0;
+        enter(Machine.CB, 0);
+    }
+
+    void enter(int entry, long executed) {
+        if ((entry < 0) || (entry >= image.size)) {
+            return;
+        }
+        if (depth == stackEntry.length) {
+            stackEntry = Arrays.copyOf(stackEntry, 2 * depth);
+            stackStart = Arrays.copyOf(stackStart, 2 * depth);
+            stackChildren = Arrays.copyOf(stackChildren, 2 * depth);
+        }
+        stackEntry[depth] = entry;
+        stackStart[depth] = executed;
+        stackChildren[depth] = 0;
+        depth++;
+        calls[entry]++;
+        active[entry]++;
+    }
+
+    void leave(long executed) {
+        if (depth == 0) {
+            return;
+        }
+        depth--;
+        int entry = stackEntry[depth];
+        long total = executed - stackStart[depth];
+        exclusive[entry] = exclusive[entry] + total - stackChildren[depth];
+        active[entry]--;
+        if (active[entry] == 0) {
+            inclusive[entry] = inclusive[entry] + total;
+        }
+        if (depth > 0) {
+            stackChildren[depth - 1] = stackChildren[depth - 1] + total;
+        }
+    }
+
+    // Closes every routine still active when the run stops.
+    void finish(long executed) {
+        while (depth > 0) {
+            leave(executed);
+        }
+    }
+
+    void primitive(int displacement) {
+        if ((displacement >= 0) && (displacement < primitiveCalls.length)) {
+            primitiveCalls[displacement]++;
+        }
+    }
+
+    // REPORTS
+
+    /**
+     * Returns the number of instructions executed with each operation code.
+     */
+    public long[] opcodeCounts() {
+        long[] result = new long[Machine.HALTop + 1];
+        for (int addr = Machine.CB; addr < image.size; addr++) {
+            int op = CodeImage.op(image.words[addr]);
+            if ((op >= 0) && (op <= Machine.HALTop)) {
+                result[op] = result[op] + counts[addr];
+            }
+        }
+        return result;
+    }
+
+    static String routineName(int entry) {
+        return (entry == Machine.CB) ? "main" : "routine@" + entry;
+    }
+
+    // Returns the indices of the non-zero values, largest value first.
+    private static List<Integer> sorted(long[] values) {
+        List<Integer> indices = new ArrayList<>();
+        for (int index = 0; index < values.length; index++) {
+            if (values[index] != 0) {
+                indices.add(index);
+            }
+        }
+        indices.sort((a, b) -> Long.compare(values[b], values[a]));
+        return indices;
+    }
+
+    /**
+     * Writes the profile as text, each section sorted by decreasing count.
+     * @param out	the stream to write to.
+     */
+    public void report(PrintStream out) {
+        long[] opcodes = opcodeCounts();
+        long total = Arrays.stream(opcodes).sum();
+
+        out.println("");
+        out.println("Profile: " + total + " instructions executed");
+        out.println("");
+        out.println("  Opcode            count       %");
+        for (int op : sorted(opcodes)) {
+            out.println(String.format("  %-8s %14d  %5.1f", Disassembler.mnemonic(op), opcodes[op],
+                    100.0 * opcodes[op] / total));
+        }
+        out.println("");
+        out.println("  Primitive         calls");
+        for (int d : sorted(primitiveCalls)) {
+            out.println(String.format("  %-10s %12d", Disassembler.primitiveName(d), primitiveCalls[d]));
+        }
+        out.println("");
+        out.println("  Routine                calls       inclusive       exclusive       %");
+        for (int entry : sorted(exclusive)) {
+            out.println(String.format("  %-14s %12d  %14d  %14d  %5.1f", routineName(entry), calls[entry],
+                    inclusive[entry], exclusive[entry], 100.0 * exclusive[entry] / total));
+        }
+    }
+
+    /**
+     * Writes the profile as comma-separated values, one line per opcode,
+     * primitive and routine, under the header
+     * <code>kind,name,address,count,inclusive,exclusive</code>. The count
+     * of a routine is its number of calls.
+     * @param fileName	the name of the file to write.
+     * @throws IOException if the file cannot be written.
+     */
+    public void write(String fileName) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(fileName))) {
+            out.println("kind,name,address,count,inclusive,exclusive");
+            long[] opcodes = opcodeCounts();
+            for (int op : sorted(opcodes)) {
+                out.println("opcode," + Disassembler.mnemonic(op) + ",," + opcodes[op] + ",,");
+            }
+            for (int d : sorted(primitiveCalls)) {
+                out.println("primitive," + Disassembler.primitiveName(d) + ",," + primitiveCalls[d] + ",,");
+            }
+            for (int entry : sorted(exclusive)) {
+                out.println("routine," + routineName(entry) + "," + entry + "," + calls[entry] + ","
+                        + inclusive[entry] + "," + exclusive[entry]);
+            }
+        }
+    }
+}
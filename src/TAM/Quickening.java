@@ -0,0 +1,82 @@
+package TAM;
+
+/**
+ * Instruction quickening for the TAM interpreter.
+ *
+ * <p>
+ * When quickening is enabled, the first execution of a LOAD, STORE or CALL
+ * rewrites the instruction in the interpreter's code array into a
+ * specialized form, so that later executions skip the checks that the
+ * generic instruction repeats every time:
+ * </p>
+ * <ul>
+ * <li>a CALL whose target is a primitive routine becomes CALLPRIM, which
+ * holds the primitive displacement in d and invokes it directly;</li>
+ * <li>a LOAD or STORE relative to SB or LB becomes a register-specific
+ * form that needs no call to <code>TamMachine.content</code>;</li>
+ * <li>a LOAD or STORE of a single word becomes a form without a copy
+ * loop.</li>
+ * </ul>
+ */
+public final class Quickening {
+
+    // Quickened operation codes, above the superinstruction codes.
+    final static int CALLPRIMop = 24,
+            LOAD1op = 25,
+            LOADSBop = 26,
+            LOADSB1op = 27,
+            LOADLBop = 28,
+            LOADLB1op = 29,
+            STORE1op = 30,
+            STORESB1op = 31,
+            STORELB1op = 32;
+
+    private Quickening() {
+    }
+
+    /**
+     * Returns the quickened form of the given instruction, or the
+     * instruction itself if it has no quickened form.
+     * @param word	a packed instruction.
+     * @return the packed quickened instruction.
+     */
+    static long quicken(long word) {
+        int op = CodeImage.op(word), r = CodeImage.r(word),
+                n = CodeImage.n(word), d = CodeImage.d(word);
+
+        switch (op) {
+            case Machine.CALLop:
+                // Only registers that never change can be folded.
+                int base = switch (r) {
+                    case Machine.CBr -> TamMachine.CB;
+                    case Machine.PBr -> Machine.PB;
+                    case Machine.SBr -> TamMachine.SB;
+                    default -> -1;
+                };
+                if ((base >= 0) && (d + base >= Machine.PB)) {
+                    return CodeImage.pack(CALLPRIMop, r, n, d + base - Machine.PB);
+                }
+                return word;
+            case Machine.LOADop:
+                if (r == Machine.SBr) {
+                    return CodeImage.pack((n == 1) ? LOADSB1op : LOADSBop, r, n, d + TamMachine.SB);
+                } else if (r == Machine.LBr) {
+                    return CodeImage.pack((n == 1) ? LOADLB1op : LOADLBop, r, n, d);
+                } else if (n == 1) {
+                    return CodeImage.pack(LOAD1op, r, n, d);
+                }
+                return word;
+            case Machine.STOREop:
+                if (n != 1) {
+                    return word;
+                } else if (r == Machine.SBr) {
+                    return CodeImage.pack(STORESB1op, r, n, d + TamMachine.SB);
+                } else if (r == Machine.LBr) {
+                    return CodeImage.pack(STORELB1op, r, n, d);
+                }
+                return CodeImage.pack(STORE1op, r, n, d);
+            default:
+                return word;
+        }
+    }
+}
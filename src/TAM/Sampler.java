@@ -0,0 +1,140 @@
+package TAM;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A sampling profiler for TAM runs, writing collapsed stacks that
+ * standard flame-graph tools can render.
+ *
+ * <p>
+ * A timer thread asks the machine for a sample at a fixed interval. The
+ * machine takes it at its next limit check, within
+ * <code>TamMachine.SAMPLEINTERVAL</code> instructions, by walking the
+ * dynamic links from LB. Taking the sample on the machine's own thread
+ * means it never sees a half-built frame, and the dispatch loop pays only
+ * for a more frequent check of a volatile flag.
+ * </p>
+ *
+ * <p>
+ * Each frame is named after the routine its CALL entered, which is read
+ * from the call instruction before the frame's return address:
+ * <code>main</code> for the main program, <code>routine@N</code> for a
+ * routine entered at code address N, and <code>closure@N</code> for a
+ * routine called through CALLI at address N.
+ * </p>
+ */
+public final class Sampler {
+
+    // Frames beyond this depth are left out of a sample.
+    private final static int MAXDEPTH = 1024;
+
+    private final CodeImage image;
+    private final long intervalNanos;
+    private final Map<String, Long> stacks = new HashMap<>();
+    private final StringBuilder key = new StringBuilder();
+    private final int[] frames = new int[MAXDEPTH];
+    private long samples;
+    private Thread timer;
+
+    /**
+     * Creates a sampler for the given code image.
+     * @param image	the program to sample.
+     * @param intervalMicros	the time between samples, in microseconds.
+     */
+    public Sampler(CodeImage image, long intervalMicros) {
+        this.image = image;
+        this.intervalNanos = Math.max(1, intervalMicros) * 1000;
+    }
+
+    /**
+     * Attaches the sampler to the given machine and starts requesting
+     * samples, until {@link #stop()} is called.
+     * @param m	the machine to sample.
+     */
+    public synchronized void start(final TamMachine m) {
+        m.setSampler(this);
+        timer = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Thread.sleep(intervalNanos / 1000000, (int) (intervalNanos % 1000000));
+                    m.sampleRequested = true;
+                }
+            } catch (InterruptedException s) {
+                // stopped
+            }
+        }, "TAM sampler");
+        timer.setDaemon(true);
+        timer.start();
+    }
+
+    /**
+     * Stops requesting samples.
+     */
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.interrupt();
+            timer = null;
+        }
+    }
+
+    // Returns the name of the routine whose frame has the given return
+    // address.
+    private String frameName(int returnAddress) {
+        int site = returnAddress - 1;
+        if ((site < Machine.CB) || (site >= image.size)) {
+            return "unknown";
+        }
+        long word = image.words[site];
+        int op = CodeImage.op(word), r = CodeImage.r(word);
+        if ((op == Machine.CALLop) && (r == Machine.CBr)) {
+            return Profile.routineName(CodeImage.d(word) + Machine.CB);
+        }
+        return "closure@" + site;
+    }
+
+    // Records the stack of the given machine, on the machine's own thread.
+    void sample(TamMachine m) {
+        int depth = 0;
+        int lb = m.LB;
+        while ((lb > TamMachine.SB) && (lb + 2 < m.HB) && (depth < MAXDEPTH)) {
+            frames[depth++] = m.data[lb + 2];
+            lb = m.data[lb + 1];
+        }
+        key.setLength(0);
+        key.append("main");
+        for (int index = depth - 1; index >= 0; index--) {
+            key.append(';').append(frameName(frames[index]));
+        }
+        stacks.merge(key.toString(), 1L, Long::sum);
+        samples++;
+    }
+
+    /**
+     * Returns the number of samples taken so far.
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * Writes the samples in collapsed-stack format: one line per distinct
+     * stack, outermost routine first, followed by its number of samples.
+     * @param fileName	the name of the file to write.
+     * @throws IOException if the file cannot be written.
+     */
+    public void write(String fileName) throws IOException {
+        List<Map.Entry<String, Long>> sorted = new ArrayList<>(stacks.entrySet());
+        sorted.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        try (PrintWriter out = new PrintWriter(new FileWriter(fileName))) {
+            for (Map.Entry<String, Long> entry : sorted) {
+                out.println(entry.getKey() + " " + entry.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package TAM;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * A cooperative scheduler that multiplexes many TAM machines onto a small,
+ * fixed set of carrier threads.
+ *
+ * <p>
+ * Each carrier takes the next ready machine and runs it in the
+ * interpreter for a quantum of instructions. When the quantum is over the
+ * machine is parked at an instruction boundary and goes to the back of
+ * the queue. A machine's input is supplied through its {@link Job}, and
+ * a machine about to call an input primitive whose input has not arrived
+ * yet is parked before the call, without holding a carrier, until
+ * {@link Job#supplyInput} or {@link Job#closeInput} makes it ready.
+ * </p>
+ *
+ * <p>
+ * The input a primitive needs is ready when: for get, one character; for
+ * geteol, a line separator; for getint, a character that is not white
+ * space followed by one that is. Input that has been closed is always
+ * ready. A machine's output is written, through a buffer, to the stream it
+ * was created with, and flushed at the end of every quantum.
+ * </p>
+ */
+public final class Scheduler {
+
+    /**
+     * The quantum of a scheduler created without one, in instructions.
+     */
+    public final static long DEFAULTQUANTUM = 10000;
+
+    private final long quantum;
+    private final BlockingQueue<Job> runQueue = new LinkedBlockingQueue<>();
+    private final Thread[] carriers;
+
+    /**
+     * Creates a scheduler and starts its carrier threads, which are daemon
+     * threads.
+     * @param carrierCount	the number of carrier threads.
+     * @param quantum	the instructions a machine runs before it is parked.
+     */
+    public Scheduler(int carrierCount, long quantum) {
+        this.quantum = Math.max(1, quantum);
+        carriers = new Thread[Math.max(1, carrierCount)];
+        for (int index = 0; index < carriers.length; index++) {
+            carriers[index] = new Thread(this::carry, "TAM carrier " + index);
+            carriers[index].setDaemon(true);
+            carriers[index].start();
+        }
+    }
+
+    /**
+     * Creates a scheduler with one carrier per available processor and the
+     * default quantum.
+     */
+    public Scheduler() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULTQUANTUM);
+    }
+
+    private void carry() {
+        try {
+            while (true) {
+                runQueue.take().slice();
+            }
+        } catch (InterruptedException s) {
+            // shut down
+        }
+    }
+
+    /**
+     * Stops the carrier threads. Machines still running or parked stay as
+     * they are.
+     */
+    public void shutdown() {
+        for (Thread carrier : carriers) {
+            carrier.interrupt();
+        }
+    }
+
+    /**
+     * Submits a machine to run from CB. Its I/O channel is replaced by one
+     * fed through the returned job.
+     * @param machine	the machine to run, not running elsewhere.
+     * @return the job of the machine.
+     */
+    public Job submit(TamMachine machine) {
+        return submit(machine, null);
+    }
+
+    /**
+     * Submits a machine to run from CB. Its I/O channel is replaced by one
+     * fed through the returned job.
+     * @param machine	the machine to run, not running elsewhere.
+     * @param whenDone	called on a carrier thread when the machine halts or
+     *			fails, or <code>null</code>.
+     * @return the job of the machine.
+     */
+    public Job submit(TamMachine machine, Consumer<Job> whenDone) {
+        Job job = new Job(machine, whenDone);
+        runQueue.add(job);
+        return job;
+    }
+
+    /**
+     * A machine submitted to the scheduler, and its input.
+     */
+    public final class Job {
+
+        private final TamMachine machine;
+        private final Consumer<Job> whenDone;
+        private final BufferedIOChannel output;
+
+        // The input not yet read is input[inputPos..inputEnd-1].
+        private byte[] input = new byte[256];
+        private int inputPos, inputEnd;
+        private boolean inputClosed, cancelled;
+
+        private boolean started, waiting, done;
+        // The input primitive the machine is parked before, or -1.
+        private int blockedOn = -1;
+
+        private Job(TamMachine machine, Consumer<Job> whenDone) {
+            this.machine = machine;
+            this.whenDone = whenDone;
+            this.output = new BufferedIOChannel(InputStream.nullInputStream(), machine.out);
+            machine.setIOChannel(new Channel());
+            machine.inputReady = this::ready;
+        }
+
+        /**
+         * Returns the machine this job runs.
+         */
+        public TamMachine getMachine() {
+            return machine;
+        }
+
+        /**
+         * Appends to the machine's input.
+         * @param bytes	the input to append.
+         */
+        public synchronized void supplyInput(byte[] bytes) {
+            if (inputPos > 0) {
+                System.arraycopy(input, inputPos, input, 0, inputEnd - inputPos);
+                inputEnd = inputEnd - inputPos;
+                inputPos = 0;
+            }
+            if (inputEnd + bytes.length > input.length) {
+                input = Arrays.copyOf(input, Math.max(2 * input.length, inputEnd + bytes.length));
+            }
+            System.arraycopy(bytes, 0, input, inputEnd, bytes.length);
+            inputEnd = inputEnd + bytes.length;
+            wake();
+        }
+
+        /**
+         * Appends to the machine's input.
+         * @param text	the input to append, encoded as UTF-8.
+         */
+        public void supplyInput(String text) {
+            supplyInput(text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Ends the machine's input. Reads beyond the input supplied so far
+         * return the end of the input.
+         */
+        public synchronized void closeInput() {
+            inputClosed = true;
+            wake();
+        }
+
+        /**
+         * Cancels the machine, which fails with FAILEDCANCELLED even if it
+         * is waiting for input.
+         */
+        public synchronized void cancel() {
+            cancelled = true;
+            machine.cancel();
+            wake();
+        }
+
+        /**
+         * Returns true once the machine has halted or failed.
+         */
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Waits until the machine has halted or failed.
+         * @return the final status of the machine.
+         * @throws InterruptedException if the wait is interrupted.
+         */
+        public synchronized int awaitStatus() throws InterruptedException {
+            while (!done) {
+                wait();
+            }
+            return machine.status;
+        }
+
+        // Requeues the machine if it is parked waiting for input that is now
+        // ready.
+        private void wake() {
+            if (waiting && ready(blockedOn)) {
+                waiting = false;
+                runQueue.add(this);
+            }
+        }
+
+        // Tests whether the input the given primitive reads is ready, and
+        // remembers the primitive if it is not.
+        private synchronized boolean ready(int displacement) {
+            boolean ready;
+            if (inputClosed || cancelled) {
+                ready = true;
+            } else if (displacement == Machine.getDisplacement) {
+                ready = inputPos < inputEnd;
+            } else if (displacement == Machine.geteolDisplacement) {
+                ready = find(inputPos, true) >= 0;
+            } else {
+                int start = find(inputPos, false);
+                ready = (start >= 0) && (find(start, true) >= 0);
+            }
+            blockedOn = ready ? -1 : displacement;
+            return ready;
+        }
+
+        // Returns the position of the first input character from the given
+        // one that is, or is not, white space, or -1 if there is none. A line
+        // separator is white space.
+        private int find(int from, boolean whiteSpace) {
+            for (int pos = from; pos < inputEnd; pos++) {
+                if (Character.isWhitespace((char) (input[pos] & 0xFF)) == whiteSpace) {
+                    return pos;
+                }
+            }
+            return -1;
+        }
+
+        // Runs the machine for one quantum, on a carrier thread.
+        private void slice() {
+            if (!started) {
+                started = true;
+                machine.initializeRegisters();
+            }
+            machine.quantumEnd = machine.getInstructionCount() + quantum;
+            machine.continueRun();
+            synchronized (this) {
+                if (machine.status != TamMachine.RUNNING) {
+                    done = true;
+                    notifyAll();
+                } else if (blockedOn >= 0) {
+                    waiting = true;
+                    wake();
+                } else {
+                    runQueue.add(this);
+                }
+            }
+            if (done && (whenDone != null)) {
+                whenDone.accept(this);
+            }
+        }
+
+        // The machine's channel. Its reads only happen once ready has
+        // accepted them, so they never wait.
+        private final class Channel implements IOChannel {
+
+            @Override
+            public int read() {
+                synchronized (Job.this) {
+                    return (inputPos < inputEnd) ? input[inputPos++] & 0xFF : -1;
+                }
+            }
+
+            @Override
+            public void put(char ch) throws IOException {
+                output.put(ch);
+            }
+
+            @Override
+            public void putInt(int value) throws IOException {
+                output.putInt(value);
+            }
+
+            @Override
+            public void putEol() throws IOException {
+                output.putEol();
+            }
+
+            @Override
+            public void flush() throws IOException {
+                output.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package TAM;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Superinstruction fusion for the TAM interpreter.
+ *
+ * <p>
+ * At load time, {@link #fuse(long[])} looks for instruction sequences that
+ * the Triangle code generator emits over and over, and replaces the first
+ * instruction of every occurrence with a single superinstruction that the
+ * interpreter executes in one dispatch. The remaining instructions of the
+ * sequence are left in place, so a jump into the middle of a sequence still
+ * finds ordinary instructions.
+ * </p>
+ *
+ * <p>
+ * A superinstruction only runs when it can complete without failing. If it
+ * would overflow, fail an index check or run out of data store part-way,
+ * {@link #execute(TamMachine, int, long, long[])} returns false and the interpreter
+ * runs the first instruction of the sequence on its own, so failures are
+ * reported with exactly the same machine state as without fusion.
+ * </p>
+ *
+ * <p>
+ * The fusable patterns are:
+ * </p>
+ * <ul>
+ * <li><code>literal-op</code>: LOADL followed by a CALL to add, sub, mult,
+ * lt, le, ge or gt.</li>
+ * <li><code>for-test</code>: the LOAD ST-1, LOAD ST-3, CALL le, JUMPIF test
+ * that closes every for loop.</li>
+ * <li><code>index-fetch</code> and <code>index-store</code>: the
+ * eleven-instruction bounds-checked array access ending in LOADI or STOREI.</li>
+ * </ul>
+ */
+public final class Superinstructions {
+
+    // Superinstruction operation codes, above the TAM operation codes.
+    final static int LITERALOPop = 16,
+            FORTESTop = 17,
+            INDEXFETCHop = 18,
+            INDEXSTOREop = 19;
+
+    /**
+     * The names of all the fusable patterns, in the order they are tried.
+     */
+    public final static String[] PATTERNS = {
+        "literal-op", "for-test", "index-fetch", "index-store"
+    };
+
+    // Length of the indexed access sequence, including its final LOADI or
+    // STOREI.
+    private final static int INDEXLENGTH = 11;
+
+    private final boolean literalOp, forTest, indexFetch, indexStore;
+
+    /**
+     * Creates a fusion stage for the given patterns.
+     * @param patterns	the names of the patterns to fuse, taken from
+     *			{@link #PATTERNS}.
+     * @throws IllegalArgumentException if a pattern name is unknown.
+     */
+    public Superinstructions(List<String> patterns) {
+        for (String pattern : patterns) {
+            if (!List.of(PATTERNS).contains(pattern)) {
+                throw new IllegalArgumentException("Unknown superinstruction pattern: " + pattern);
+            }
+        }
+        literalOp = patterns.contains("literal-op");
+        forTest = patterns.contains("for-test");
+        indexFetch = patterns.contains("index-fetch");
+        indexStore = patterns.contains("index-store");
+    }
+
+    /**
+     * Creates a fusion stage for all the patterns.
+     */
+    public Superinstructions() {
+        this(List.of(PATTERNS));
+    }
+
+    // FUSION
+
+    private static boolean is(long word, int op) {
+        return CodeImage.op(word) == op;
+    }
+
+    private static boolean isPrimitiveCall(long word, int displacement) {
+        return is(word, Machine.CALLop) && (CodeImage.r(word) == Machine.PBr)
+                && (CodeImage.d(word) == displacement);
+    }
+
+    private static boolean isStackLoad(long word, int d) {
+        return is(word, Machine.LOADop) && (CodeImage.r(word) == Machine.STr)
+                && (CodeImage.n(word) == 1) && (CodeImage.d(word) == d);
+    }
+
+    private static boolean isLiteralOperator(int displacement) {
+        return switch (displacement) {
+            case Machine.addDisplacement, Machine.subDisplacement, Machine.multDisplacement,
+                    Machine.ltDisplacement, Machine.leDisplacement,
+                    Machine.geDisplacement, Machine.gtDisplacement -> true;
+            default -> false;
+        };
+    }
+
+    // Returns true if the instructions from addr on are the indexed access
+    // sequence generated by Encoder.encodeFetch and Encoder.encodeStore,
+    // ending in an instruction with operation code last.
+    private static boolean isIndexedAccess(long[] code, int addr, int last) {
+        if (addr + INDEXLENGTH > code.length) {
+            return false;
+        }
+        long base = code[addr + 1];
+        return isStackLoad(code[addr], -1)
+                && is(base, Machine.LOADAop)
+                && isPrimitiveCall(code[addr + 2], Machine.addDisplacement)
+                && (code[addr + 3] == base)
+                && (code[addr + 4] == base)
+                && is(code[addr + 5], Machine.LOADLop)
+                && isPrimitiveCall(code[addr + 6], Machine.addDisplacement)
+                && isPrimitiveCall(code[addr + 7], Machine.indexCheckDisplacement)
+                && (code[addr + 8] == base)
+                && isPrimitiveCall(code[addr + 9], Machine.addDisplacement)
+                && is(code[addr + 10], last);
+    }
+
+    /**
+     * Returns a copy of the given code with the first instruction of every
+     * fusable sequence replaced by a superinstruction.
+     * @param code	the packed instructions of a code image.
+     * @return the fused code.
+     */
+    public long[] fuse(long[] code) {
+        long[] fused = code.clone();
+        for (int addr = Machine.CB; addr < code.length; addr++) {
+            long word = code[addr];
+            if (literalOp && is(word, Machine.LOADLop) && (addr + 1 < code.length)
+                    && (CodeImage.r(code[addr + 1]) == Machine.PBr)
+                    && is(code[addr + 1], Machine.CALLop)
+                    && isLiteralOperator(CodeImage.d(code[addr + 1]))) {
+                fused[addr] = CodeImage.pack(LITERALOPop, 0, CodeImage.d(code[addr + 1]),
+                        CodeImage.d(word));
+            } else if (forTest && (addr + 4 <= code.length)
+                    && isStackLoad(word, -1) && isStackLoad(code[addr + 1], -3)
+                    && isPrimitiveCall(code[addr + 2], Machine.leDisplacement)
+                    && is(code[addr + 3], Machine.JUMPIFop)) {
+                long jump = code[addr + 3];
+                fused[addr] = CodeImage.pack(FORTESTop, CodeImage.r(jump), CodeImage.n(jump),
+                        CodeImage.d(jump));
+            } else if (indexFetch && isIndexedAccess(code, addr, Machine.LOADIop)) {
+                long base = code[addr + 1];
+                fused[addr] = CodeImage.pack(INDEXFETCHop, CodeImage.r(base),
+                        CodeImage.n(code[addr + 10]), CodeImage.d(base));
+            } else if (indexStore && isIndexedAccess(code, addr, Machine.STOREIop)) {
+                long base = code[addr + 1];
+                fused[addr] = CodeImage.pack(INDEXSTOREop, CodeImage.r(base),
+                        CodeImage.n(code[addr + 10]), CodeImage.d(base));
+            }
+        }
+        return fused;
+    }
+
+    // EXECUTION
+
+    private static boolean fits(long datum) {
+        return (-Machine.maxintRep <= datum) && (datum <= Machine.maxintRep);
+    }
+
+    /**
+     * Executes the superinstruction at CP, leaving CP at the next
+     * instruction to execute.
+     * @param m	the machine to execute it on.
+     * @param op	the superinstruction operation code.
+     * @param word	the packed superinstruction.
+     * @param code	the unfused code, holding the operands of the rest of
+     *			the sequence.
+     * @return false if the superinstruction could not complete and nothing
+     *         was executed.
+     */
+    static boolean execute(TamMachine m, int op, long word, long[] code) {
+        final int[] data = m.data;
+        final int ST = m.ST;
+        final int n = CodeImage.n(word), d = CodeImage.d(word);
+
+        switch (op) {
+            case LITERALOPop: {
+                long left = data[ST - 1];
+                int result;
+                switch (n) {
+                    case Machine.addDisplacement -> {
+                        if (!fits(left + d)) {
+                            return false;
+                        }
+                        result = (int) (left + d);
+                    }
+                    case Machine.subDisplacement -> {
+                        if (!fits(left - d)) {
+                            return false;
+                        }
+                        result = (int) (left - d);
+                    }
+                    case Machine.multDisplacement -> {
+                        if (!fits(left * d)) {
+                            return false;
+                        }
+                        result = (int) (left * d);
+                    }
+                    case Machine.ltDisplacement -> result = TamMachine.toInt(left < d);
+                    case Machine.leDisplacement -> result = TamMachine.toInt(left <= d);
+                    case Machine.geDisplacement -> result = TamMachine.toInt(left >= d);
+                    default -> result = TamMachine.toInt(left > d);
+                }
+                // LOADL pushes d, which the operator immediately pops again.
+                if (m.HT - ST < 1) {
+                    return false;
+                }
+                data[ST] = d;
+                data[ST - 1] = result;
+                m.CP = m.CP + 2;
+                return true;
+            }
+            case FORTESTop: {
+                if (m.HT - ST < 2) {
+                    return false;
+                }
+                int control = data[ST - 1], limit = data[ST - 2];
+                // Leave behind what the unfused sequence writes above ST.
+                data[ST] = TamMachine.toInt(control <= limit);
+                data[ST + 1] = limit;
+                if (data[ST] == n) {
+                    m.CP = d + m.content(CodeImage.r(word));
+                } else {
+                    m.CP = m.CP + 4;
+                }
+                return true;
+            }
+            case INDEXFETCHop:
+            case INDEXSTOREop: {
+                if (m.HT - ST < 4) {
+                    return false;
+                }
+                int base = d + m.content(CodeImage.r(word));
+                int size = CodeImage.d(code[m.CP + 5]);
+                long position = (long) data[ST - 1] + base;
+                long upper = (long) base + size;
+                if (!fits(position) || !fits(upper)
+                        || (upper <= position) || (base > position)) {
+                    return false;
+                }
+                // LOADI n, with the address taking the place of the index
+                if ((op == INDEXFETCHop) && (m.HT - (ST - 1) < n)) {
+                    return false;
+                }
+                int addr = (int) position;
+                // Leave behind what the unfused sequence writes above ST.
+                data[ST] = base;
+                data[ST + 1] = base;
+                data[ST + 2] = (int) upper;
+                data[ST + 3] = size;
+                data[ST - 1] = addr;
+                if (op == INDEXFETCHop) {
+                    System.arraycopy(data, addr, data, ST - 1, n);
+                    m.ST = ST - 1 + n;
+                } else {
+                    // STOREI n, with the value to store below the index
+                    int from = ST - 1 - n;
+                    System.arraycopy(data, from, data, addr, n);
+                    m.ST = from;
+                }
+                m.CP = m.CP + INDEXLENGTH;
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    // MINING
+
+    // Returns a short description of the given instruction, as used to
+    // group instruction sequences.
+    private static String shape(long word) {
+        int op = CodeImage.op(word);
+        if ((op == Machine.CALLop) && (CodeImage.r(word) == Machine.PBr)) {
+            return "CALL " + Disassembler.primitiveName(CodeImage.d(word));
+        }
+        return Disassembler.mnemonic(op);
+    }
+
+    /**
+     * Writes the instruction sequences of two to four instructions that
+     * executed most often in a profile run, as candidates for new patterns.
+     * A sequence is counted as many times as its least executed instruction.
+     * @param code	the packed instructions of the code image that ran.
+     * @param counts	the number of times each instruction executed.
+     * @param limit	the number of sequences to write.
+     */
+    public static void reportSequences(long[] code, long[] counts, int limit) {
+        Map<String, Long> frequency = new HashMap<>();
+        for (int length = 2; length <= 4; length++) {
+            for (int addr = Machine.CB; addr + length <= code.length; addr++) {
+                long times = Long.MAX_VALUE;
+                StringBuilder sequence = new StringBuilder();
+                for (int index = 0; index < length; index++) {
+                    times = Math.min(times, counts[addr + index]);
+                    if (index > 0) {
+                        sequence.append("; ");
+                    }
+                    sequence.append(shape(code[addr + index]));
+                }
+                if (times > 0) {
+                    frequency.merge(sequence.toString(), times, Long::sum);
+                }
+            }
+        }
+        List<Map.Entry<String, Long>> sorted = new ArrayList<>(frequency.entrySet());
+        sorted.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+
+        System.out.println("");
+        System.out.println("Most frequent instruction sequences:");
+        System.out.println("");
+        for (int index = 0; (index < limit) && (index < sorted.size()); index++) {
+            Map.Entry<String, Long> entry = sorted.get(index);
+            System.out.println(String.format("%12d  %s", entry.getValue(), entry.getKey()));
+        }
+    }
+}
@@ -0,0 +1,1279 @@
+package TAM;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+
+/**
+ * A TAM machine instance: a data store, the machine registers and the
+ * streams the I/O primitives read from and write to, running one loaded
+ * {@link CodeImage}.
+ *
+ * <p>
+ * Machines share nothing but their code image, which is never modified, so
+ * any number of them can run in the same JVM at once, each on its own
+ * thread. A single machine is not safe for use by several threads.
+ * </p>
+ *
+ * <p>
+ * For example:
+ * </p>
+ * <pre>
+ *   TamMachine machine = new TamMachine(Interpreter.loadObjectProgram("obj.tam"));
+ *   machine.run();
+ *   machine.showStatus();
+ * </pre>
+ */
+public final class TamMachine {
+
+    // status values
+    public final static int RUNNING = 0, HALTED = 1, FAILEDDATASTOREFULL = 2, FAILEDINVALIDCODEADDRESS = 3,
+            FAILEDINVALIDINSTRUCTION = 4, FAILEDOVERFLOW = 5, FAILEDZERODIVIDE = 6,
+            FAILEDIOERROR = 7, FAILEDARRAYINDEXOUTOFBOUNDS = 8, FAILEDINVALIDHEAPADDRESS = 9,
+            FAILEDINSTRUCTIONLIMIT = 10, FAILEDTIMELIMIT = 11, FAILEDOUTPUTLIMIT = 12,
+            FAILEDHEAPLIMIT = 13, FAILEDCANCELLED = 14;
+
+    // DATA STORE REGISTERS
+    final static int CB = 0,
+            SB = 0;
+
+    final int HB;  // = upper bound of data array + 1
+
+    /**
+     * The data store size of a machine created without one, in words.
+     */
+    public final static int DEFAULTSTORESIZE = 1024;
+
+    /**
+     * The largest data store size, in words. Data addresses are TAM words,
+     * so no address above maxint can be formed without overflow.
+     */
+    public final static int MAXSTORESIZE = Machine.maxintRep + 1;
+
+    // CODE STORE
+    final CodeImage image;
+    final int CT;
+
+    // DATA STORE
+    // A failed space check lets the instruction complete before the run
+    // stops, as it always has, so the array leaves room beyond HB for the
+    // largest single push: a LOAD of 255 words.
+    final static int SLACK = 256;
+
+    final int[] data;
+
+    // HEAP
+    final HeapAllocator heap = new HeapAllocator(this);
+
+    // REGISTERS
+    // Only valid between runs and around calls out of the dispatch loop,
+    // which keeps CP, ST and LB in locals.
+    int CP, ST, HT, LB, status;
+
+    // I/O
+    // The I/O primitives go through io, while the status report and the
+    // dump of the data store are written to out.
+    private IOChannel io;
+    final PrintStream out;
+    int currentChar;
+    // The number of characters read through io in the current run.
+    long inputPosition;
+
+    // EXECUTION OPTIONS
+    // Superinstruction fusion applied by continueRun, if any.
+    private Superinstructions fusion;
+    // Whether continueRun quickens instructions as they execute.
+    private boolean quickening;
+    // Per-instruction execution counts, collected only when not null.
+    private long[] executionCounts;
+    // The profile kept by continueRun, if any.
+    private Profile profile;
+    // The code continueRun executes in the current run: the image's own
+    // words, or a fused or quickened copy of them, made when it first
+    // continues the run and kept until the next run starts, so that a run
+    // continued after every quantum neither copies the code again nor
+    // loses the instructions it has quickened.
+    private long[] runCode;
+
+    // LIMITS
+    // The dispatch loops count instructions down from fuel, and only look
+    // at the limits and the cancellation flag when it runs out, at least
+    // every CHECKINTERVAL instructions.
+    final static int CHECKINTERVAL = 1 << 16;
+    // The check interval while a sampler is attached, so that a sample is
+    // taken within this many instructions of its request.
+    final static int SAMPLEINTERVAL = 1 << 10;
+
+    private long instructionLimit = Long.MAX_VALUE;
+    private long timeLimit;         // in nanoseconds, or 0 for none
+    private long outputLimit = Long.MAX_VALUE;
+    int heapLimit = Integer.MAX_VALUE;
+    private volatile boolean cancelled;
+
+    // SAMPLING
+    private Sampler sampler;
+    volatile boolean sampleRequested;
+
+    // SCHEDULING
+    // The interpreter stops, with the status still RUNNING, before a call
+    // of an input primitive that inputReady rejects, given its
+    // displacement, and once quantumEnd instructions have been executed.
+    IntPredicate inputReady;
+    long quantumEnd = Long.MAX_VALUE;
+
+    // CHECKPOINTS
+    private Consumer<Checkpoint> checkpointHandler;
+    private long checkpointInterval, nextCheckpoint;
+    private volatile boolean checkpointRequested;
+
+    private long deadline;
+    long granted, outputCount, fuel;
+
+    /**
+     * Creates a machine for the given code image, using the standard input
+     * and output streams.
+     * @param image	the program to run.
+     */
+    public TamMachine(CodeImage image) {
+        this(image, System.in, System.out);
+    }
+
+    /**
+     * Creates a machine for the given code image.
+     * @param image	the program to run.
+     * @param in	the stream read by the input primitives.
+     * @param out	the stream written by the output primitives and by
+     *			{@link #showStatus()}.
+     */
+    public TamMachine(CodeImage image, InputStream in, PrintStream out) {
+        this(image, in, out, DEFAULTSTORESIZE);
+    }
+
+    /**
+     * Creates a machine for the given code image, with a data store of the
+     * given size. The stack grows up from SB and the heap down from HB, so
+     * either can use all the space the other leaves free.
+     * @param image	the program to run.
+     * @param in	the stream read by the input primitives.
+     * @param out	the stream written by the output primitives and by
+     *			{@link #showStatus()}.
+     * @param storeSize	the size of the data store, in words.
+     * @throws IllegalArgumentException if storeSize is not between 1 and
+     *         {@link #MAXSTORESIZE}.
+     */
+    public TamMachine(CodeImage image, InputStream in, PrintStream out, int storeSize) {
+        if ((storeSize < 1) || (storeSize > MAXSTORESIZE)) {
+            throw new IllegalArgumentException("Data store size must be between 1 and "
+                    + MAXSTORESIZE + " words: " + storeSize);
+        }
+        this.image = image;
+        this.CT = image.size;
+        this.io = new BufferedIOChannel(in, out);
+        this.out = out;
+        this.HB = storeSize;
+        this.data = new int[storeSize + SLACK];
+        initializeRegisters();
+    }
+
+    /**
+     * Replaces the channel used by the I/O primitives, which by default
+     * buffers the streams the machine was created with.
+     * @param io	the channel to use.
+     */
+    public void setIOChannel(IOChannel io) {
+        this.io = io;
+    }
+
+    /**
+     * Enables superinstruction fusion for the following runs.
+     * @param fusion	the fusion stage to apply, or <code>null</code>.
+     */
+    public void setFusion(Superinstructions fusion) {
+        this.fusion = fusion;
+    }
+
+    /**
+     * Enables or disables instruction quickening for the following runs.
+     * @param quickening	true to quicken instructions.
+     */
+    public void setQuickening(boolean quickening) {
+        this.quickening = quickening;
+    }
+
+    /**
+     * Makes the following runs of the interpreter fill in the given
+     * profile. Superinstruction fusion is not applied while profiling.
+     * @param profile	the profile to fill in, or <code>null</code>.
+     */
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Attaches a sampling profiler to the following runs, or detaches it.
+     * The sampler's timer thread requests samples, which the machine takes
+     * at its next limit check, so each sample sees a consistent stack.
+     * @param sampler	the sampler to attach, or <code>null</code>.
+     */
+    public void setSampler(Sampler sampler) {
+        this.sampler = sampler;
+    }
+
+    /**
+     * Limits the number of instructions each run may execute. A
+     * superinstruction counts as one instruction.
+     * @param limit	the instruction budget.
+     */
+    public void setInstructionLimit(long limit) {
+        this.instructionLimit = limit;
+    }
+
+    /**
+     * Limits the time each run may take.
+     * @param millis	the time limit in milliseconds, or 0 for none.
+     */
+    public void setTimeLimit(long millis) {
+        this.timeLimit = millis * 1000000;
+    }
+
+    /**
+     * Limits the number of characters each run may write through the I/O
+     * primitives. A line separator counts as one character.
+     * @param limit	the output limit.
+     */
+    public void setOutputLimit(long limit) {
+        this.outputLimit = limit;
+    }
+
+    /**
+     * Limits the size of the heap.
+     * @param words	the heap limit, in words.
+     */
+    public void setHeapLimit(int words) {
+        this.heapLimit = words;
+    }
+
+    /**
+     * Stops the current or next run of this machine with status
+     * FAILEDCANCELLED, within {@link #CHECKINTERVAL} instructions. A
+     * cancelled machine stays cancelled. Safe to call from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Makes the following runs take checkpoints and pass them to the given
+     * handler, on the machine's own thread. A checkpoint is taken every
+     * interval instructions, if interval is positive, and within
+     * {@link #CHECKINTERVAL} instructions of each call to
+     * {@link #requestCheckpoint()}. Taking one only copies the used parts of
+     * the data store, so the handler should write it out on another thread
+     * if it must not stall the run.
+     * @param interval	the instructions between checkpoints, or 0 for
+     *			checkpoints only on request.
+     * @param handler	the handler to pass checkpoints to, or
+     *			<code>null</code> to take none.
+     */
+    public void setCheckpointHandler(long interval, Consumer<Checkpoint> handler) {
+        this.checkpointInterval = interval;
+        this.checkpointHandler = handler;
+    }
+
+    /**
+     * Asks the current run for a checkpoint. Safe to call from any thread.
+     */
+    public void requestCheckpoint() {
+        checkpointRequested = true;
+    }
+
+    /**
+     * Makes the following runs count how many times each instruction
+     * executes.
+     * @return the array of counts, indexed by code address.
+     */
+    public long[] countExecutions() {
+        executionCounts = new long[CT];
+        return executionCounts;
+    }
+
+    /**
+     * Returns the number of instructions executed by the current or last
+     * run. While a run is in progress, the count is only updated at its
+     * limit checks.
+     */
+    public long getInstructionCount() {
+        return granted - fuel;
+    }
+
+    /**
+     * Returns the code image run by this machine.
+     */
+    public CodeImage getImage() {
+        return image;
+    }
+
+    /**
+     * Returns the allocator that serves the new and dispose primitives.
+     */
+    public HeapAllocator getHeap() {
+        return heap;
+    }
+
+    /**
+     * Returns the status of the machine, one of RUNNING, HALTED or the
+     * FAILED* values.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    //Returns the current content of register r,
+    //even if r is onhe of the pseudo-registers L1..L6
+    int content(int r) {
+        return switch (r) {
+            case Machine.CBr -> CB;
+            case Machine.CTr -> CT;
+            case Machine.PBr -> Machine.PB;
+            case Machine.PTr -> Machine.PT;
+            case Machine.SBr -> SB;
+            case Machine.STr -> ST;
+            case Machine.HBr -> HB;
+            case Machine.HTr -> HT;
+            case Machine.LBr -> LB;
+            case Machine.L1r, Machine.L2r, Machine.L3r,
+                    Machine.L4r, Machine.L5r, Machine.L6r -> displayLink(r - Machine.LBr, LB);
+            case Machine.CPr -> CP;
+            default -> 0;
+        };
+    }
+
+    // As content, but with CP, ST and LB taken from the dispatch loop.
+    int content(int r, int cp, int st, int lb) {
+        return switch (r) {
+            case Machine.STr -> st;
+            case Machine.LBr -> lb;
+            case Machine.L1r, Machine.L2r, Machine.L3r,
+                    Machine.L4r, Machine.L5r, Machine.L6r -> displayLink(r - Machine.LBr, lb);
+            case Machine.CPr -> cp;
+            default -> content(r);
+        };
+    }
+
+    // DISPLAY
+    // The display caches the frame bases L1..L6 of the current frame, so
+    // that non-local accesses do not walk the static chain every time.
+    // There is one entry per active frame: a count of the valid levels,
+    // followed by L1..L6. The entry is filled lazily, and is derived from
+    // the caller's entry when a routine is called.
+    final static int DISPLAYSIZE = 8;
+
+    private int[] displayStack = new int[64 * DISPLAYSIZE];
+    private int displayTop;
+
+    // Returns the base of the frame the given number of levels out from
+    // the frame at lb.
+    int displayLink(int level, int lb) {
+        int top = displayTop;
+        int valid = displayStack[top];
+        if (level > valid) {
+            for (int k = valid + 1; k <= level; k++) {
+                displayStack[top + k] = data[(k == 1) ? lb : displayStack[top + k - 1]];
+            }
+            displayStack[top] = level;
+        }
+        return displayStack[top + level];
+    }
+
+    void resetDisplay() {
+        displayTop = 0;
+        displayStack[0] = 0;
+    }
+
+    // Records the display of a new frame, before LB is moved to it. n is
+    // the register that supplied the static link, or -1 if the static link
+    // came from a closure.
+    void enterFrame(int n, int staticLink) {
+        int old = displayTop;
+        int top = old + DISPLAYSIZE;
+        if (top + DISPLAYSIZE > displayStack.length) {
+            displayStack = Arrays.copyOf(displayStack, 2 * displayStack.length);
+        }
+        int valid = 1;
+        displayStack[top + 1] = staticLink;
+        if ((n >= Machine.LBr) && (n <= Machine.L6r)) {
+            // The new L(k + 1) is the caller's L(k + j), where the static
+            // link is the caller's Lj.
+            int j = n - Machine.LBr;
+            int oldValid = displayStack[old];
+            for (int k = j + 1; (k <= oldValid) && (valid < 6); k++) {
+                valid++;
+                displayStack[top + valid] = displayStack[old + k];
+            }
+        }
+        displayStack[top] = valid;
+        displayTop = top;
+    }
+
+    // Discards the display of the frame being returned from.
+    void leaveFrame() {
+        if (displayTop > 0) {
+            displayTop = displayTop - DISPLAYSIZE;
+        } else {
+            displayStack[0] = 0;
+        }
+    }
+
+    // PROGRAM STATUS
+    // Writes a summary of the machine state.
+    void dump() {
+        int addr, staticLink, dynamicLink, localRegNum;
+
+        out.println("");
+        out.println("State of data store and registers:");
+        out.println("");
+        if (HT == HB) {
+            out.println("            |--------|          (heap is empty)");
+        } else {
+            out.println("       HB-->");
+            out.println("            |--------|");
+            for (addr = HB - 1; addr >= HT; addr--) {
+                out.print(addr + ":");
+                if (addr == HT) {
+                    out.print(" HT-->");
+                } else {
+                    out.print("      ");
+                }
+                out.println("|" + data[addr] + "|");
+            }
+            out.println("            |--------|");
+        }
+        out.println("            |////////|");
+        out.println("            |////////|");
+        if (ST == SB) {
+            out.println("            |--------|          (stack is empty)");
+        } else {
+            dynamicLink = LB;
+            staticLink = LB;
+            localRegNum = Machine.LBr;
+            out.println("      ST--> |////////|");
+            out.println("            |--------|");
+            for (addr = ST - 1; addr >= SB; addr--) {
+                out.print(addr + ":");
+                if (addr == SB) {
+                    out.print(" SB-->");
+                } else if (addr == staticLink) {
+                    switch (localRegNum) {
+                        case Machine.LBr:
+                            out.print(" LB-->");
+                            break;
+                        case Machine.L1r:
+                            out.print(" L1-->");
+                            break;
+                        case Machine.L2r:
+                            out.print(" L2-->");
+                            break;
+                        case Machine.L3r:
+                            out.print(" L3-->");
+                            break;
+                        case Machine.L4r:
+                            out.print(" L4-->");
+                            break;
+                        case Machine.L5r:
+                            out.print(" L5-->");
+                            break;
+                        case Machine.L6r:
+                            out.print(" L6-->");
+                            break;
+                    }
+                    staticLink = data[addr];
+                    localRegNum++;
+                } else {
+                    out.print("      ");
+                }
+                if ((addr == dynamicLink) && (dynamicLink != SB)) {
+                    out.print("|SL=" + data[addr] + "|");
+                } else if ((addr == dynamicLink + 1) && (dynamicLink != SB)) {
+                    out.print("|DL=" + data[addr] + "|");
+                } else if ((addr == dynamicLink + 2) && (dynamicLink != SB)) {
+                    out.print("|RA=" + data[addr] + "|");
+                } else {
+                    out.print("|" + data[addr] + "|");
+                }
+                out.println("");
+                if (addr == dynamicLink) {
+                    out.println("            |--------|");
+                    dynamicLink = data[addr + 1];
+                }
+            }
+        }
+        out.println("");
+    }
+
+    /**
+     * Writes an indication of whether and why the program has terminated,
+     * followed by the state of the data store if it failed.
+     */
+    public void showStatus() {
+        flushOutput();
+        out.println("");
+        switch (status) {
+            case RUNNING -> out.println("Program is running.");
+            case HALTED -> out.println("Program has halted normally.");
+            case FAILEDDATASTOREFULL -> out.println("Program has failed due to exhaustion of Data Store.");
+            case FAILEDINVALIDCODEADDRESS -> out.println("Program has failed due to an invalid code address.");
+            case FAILEDINVALIDINSTRUCTION -> out.println("Program has failed due to an invalid instruction.");
+            case FAILEDOVERFLOW -> out.println("Program has failed due to overflow.");
+            case FAILEDZERODIVIDE -> out.println("Program has failed due to division by zero.");
+            case FAILEDIOERROR -> out.println("Program has failed due to an IO error.");
+            case FAILEDARRAYINDEXOUTOFBOUNDS -> out.println("Program has failed due to an Index Out of Bounds");
+            case FAILEDINVALIDHEAPADDRESS -> out.println("Program has failed due to an invalid heap address.");
+            case FAILEDINSTRUCTIONLIMIT -> out.println("Program has failed due to exceeding its instruction limit.");
+            case FAILEDTIMELIMIT -> out.println("Program has failed due to exceeding its time limit.");
+            case FAILEDOUTPUTLIMIT -> out.println("Program has failed due to exceeding its output limit.");
+            case FAILEDHEAPLIMIT -> out.println("Program has failed due to exceeding its heap limit.");
+            case FAILEDCANCELLED -> out.println("Program was cancelled.");
+        }
+        if (status != HALTED) {
+            dump();
+        }
+    }
+
+    // INTERPRETATION
+    void checkSpace(int spaceNeeded) {
+        // Signals failure if there is not enough space to expand the stack or
+        // heap by spaceNeeded.
+
+        if (HT - ST < spaceNeeded) {
+            status = FAILEDDATASTOREFULL;
+        }
+    }
+
+    static boolean isTrue(int datum) {
+        // Tests whether the given datum represents true.
+        return (datum == Machine.trueRep);
+    }
+
+    boolean equal(int size, int addr1, int addr2) {
+        // Tests whether two multi-word objects are equal, given their common
+        // size and their base addresses.
+
+        return (size <= 0) || Arrays.equals(data, addr1, addr1 + size, data, addr2, addr2 + size);
+    }
+
+    int overflowChecked(long datum) {
+        // Signals failure if the datum is too large to fit into a single word,
+        // otherwise returns the datum as a single word.
+
+        if ((-Machine.maxintRep <= datum) && (datum <= Machine.maxintRep)) {
+            return (int) datum;
+        } else {
+            status = FAILEDOVERFLOW;
+            return 0;
+        }
+    }
+
+    static int toInt(boolean b) {
+        return b ? Machine.trueRep : Machine.falseRep;
+    }
+
+    // Tests whether the run must stop before calling the given primitive,
+    // because it reads input that is not ready.
+    private boolean waitsForInput(int displacement) {
+        return (inputReady != null)
+                && ((displacement == Machine.getDisplacement) || (displacement == Machine.geteolDisplacement)
+                || (displacement == Machine.getintDisplacement))
+                && !inputReady.test(displacement);
+    }
+
+    // Reads the next character through io, keeping count of the input
+    // position.
+    private int read() throws java.io.IOException {
+        inputPosition++;
+        return io.read();
+    }
+
+    // Reads and discards the given number of characters, to bring the input
+    // back to the position saved in a checkpoint.
+    void skipInput(long count) throws java.io.IOException {
+        for (long index = 0; index < count; index++) {
+            read();
+        }
+    }
+
+    int readInt() throws java.io.IOException {
+        int temp = 0;
+        int sign = 1;
+
+        do {
+            currentChar = read();
+        } while (Character.isWhitespace((char) currentChar));
+
+        if ((currentChar == '-') || (currentChar == '+')) {
+            do {
+                sign = (currentChar == '-') ? -1 : 1;
+                currentChar = read();
+            } while ((currentChar == '-') || currentChar == '+');
+        }
+
+        if (Character.isDigit((char) currentChar)) {
+            do {
+                temp = temp * 10 + (currentChar - '0');
+                currentChar = read();
+            } while (Character.isDigit((char) currentChar));
+        }
+
+        return sign * temp;
+    }
+
+    void callPrimitive(int primitiveDisplacement) {
+        // Invokes the given primitive routine.
+
+        int addr, size;
+        long accumulator = 0;
+        char ch;
+
+        if (profile != null) {
+            profile.primitive(primitiveDisplacement);
+        }
+
+        switch (primitiveDisplacement) {
+            case Machine.idDisplacement:
+                break; // nothing to be done
+            case Machine.notDisplacement:
+                data[ST - 1] = toInt(!isTrue(data[ST - 1]));
+                break;
+            case Machine.andDisplacement:
+                ST = ST - 1;
+                data[ST - 1] = toInt(isTrue(data[ST - 1]) & isTrue(data[ST]));
+                break;
+            case Machine.orDisplacement:
+                ST = ST - 1;
+                data[ST - 1] = toInt(isTrue(data[ST - 1]) | isTrue(data[ST]));
+                break;
+            case Machine.succDisplacement:
+                data[ST - 1] = overflowChecked(data[ST - 1] + 1);
+                break;
+            case Machine.predDisplacement:
+                data[ST - 1] = overflowChecked(data[ST - 1] - 1);
+                break;
+            case Machine.negDisplacement:
+                data[ST - 1] = -data[ST - 1];
+                break;
+            case Machine.addDisplacement:
+                ST = ST - 1;
+                accumulator = data[ST - 1];
+                data[ST - 1] = overflowChecked(accumulator + data[ST]);
+                break;
+            case Machine.subDisplacement:
+                ST = ST - 1;
+                accumulator = data[ST - 1];
+                data[ST - 1] = overflowChecked(accumulator - data[ST]);
+                break;
+            case Machine.multDisplacement:
+                ST = ST - 1;
+                accumulator = data[ST - 1];
+                data[ST - 1] = overflowChecked(accumulator * data[ST]);
+                break;
+            case Machine.divDisplacement:
+                ST = ST - 1;
+                accumulator = data[ST - 1];
+                if (data[ST] != 0) {
+                    data[ST - 1] = (int) (accumulator / data[ST]);
+                } else {
+                    status = FAILEDZERODIVIDE;
+                }
+                break;
+            case Machine.modDisplacement:
+                ST = ST - 1;
+                accumulator = data[ST - 1];
+                if (data[ST] != 0) {
+                    data[ST - 1] = (int) (accumulator % data[ST]);
+                } else {
+                    status = FAILEDZERODIVIDE;
+                }
+                break;
+            case Machine.ltDisplacement:
+                ST = ST - 1;
+                data[ST - 1] = toInt(data[ST - 1] < data[ST]);
+                break;
+            case Machine.leDisplacement:
+                ST = ST - 1;
+                data[ST - 1] = toInt(data[ST - 1] <= data[ST]);
+                break;
+            case Machine.geDisplacement:
+                ST = ST - 1;
+                data[ST - 1] = toInt(data[ST - 1] >= data[ST]);
+                break;
+            case Machine.gtDisplacement:
+                ST = ST - 1;
+                data[ST - 1] = toInt(data[ST - 1] > data[ST]);
+                break;
+            case Machine.eqDisplacement:
+                size = data[ST - 1]; // size of each comparand
+                ST = ST - 2 * size;
+                data[ST - 1] = toInt(equal(size, ST - 1, ST - 1 + size));
+                break;
+            case Machine.neDisplacement:
+                size = data[ST - 1]; // size of each comparand
+                ST = ST - 2 * size;
+                data[ST - 1] = toInt(!equal(size, ST - 1, ST - 1 + size));
+                break;
+            case Machine.eolDisplacement:
+                data[ST] = toInt(currentChar == '\n');
+                ST = ST + 1;
+                break;
+            case Machine.eofDisplacement:
+                data[ST] = toInt(currentChar == -1);
+                ST = ST + 1;
+                break;
+            case Machine.getDisplacement:
+                ST = ST - 1;
+                addr = data[ST];
+                try {
+                    io.flush();
+                    currentChar = read();
+                } catch (java.io.IOException s) {
+                    status = FAILEDIOERROR;
+                }
+                data[addr] = (int) currentChar;
+                break;
+            case Machine.putDisplacement:
+                ST = ST - 1;
+                ch = (char) data[ST];
+                try {
+                    if (output(1)) {
+                        io.put(ch);
+                    }
+                } catch (java.io.IOException s) {
+                    status = FAILEDIOERROR;
+                }
+                break;
+            case Machine.geteolDisplacement:
+                try {
+                    io.flush();
+                    // Stops at the end of the input as well, where read
+                    // returns -1 from then on.
+                    do {
+                        currentChar = read();
+                    } while ((currentChar != '\n') && (currentChar != -1));
+                } catch (java.io.IOException s) {
+                    status = FAILEDIOERROR;
+                }
+                break;
+            case Machine.puteolDisplacement:
+                try {
+                    if (output(1)) {
+                        io.putEol();
+                    }
+                } catch (java.io.IOException s) {
+                    status = FAILEDIOERROR;
+                }
+                break;
+            case Machine.getintDisplacement:
+                ST = ST - 1;
+                addr = data[ST];
+                try {
+                    io.flush();
+                    accumulator = readInt();
+                } catch (java.io.IOException s) {
+                    status = FAILEDIOERROR;
+                }
+                data[addr] = (int) accumulator;
+                break;
+            case Machine.putintDisplacement:
+                ST = ST - 1;
+                try {
+                    if (output(decimalLength(data[ST]))) {
+                        io.putInt(data[ST]);
+                    }
+                } catch (java.io.IOException s) {
+                    status = FAILEDIOERROR;
+                }
+                break;
+            case Machine.newDisplacement:
+                data[ST - 1] = heap.allocate(data[ST - 1]);
+                break;
+            case Machine.disposeDisplacement:
+                // Size, then address on top
+                ST = ST - 2;
+                heap.dispose(data[ST + 1], data[ST]);
+                break;
+            case Machine.indexCheckDisplacement:
+                // Upper bound, then lower bound, then index to check
+                if (data[ST - 1] <= data[ST - 3] || data[ST - 2] > data[ST - 3]) {
+                    status = FAILEDARRAYINDEXOUTOFBOUNDS;// It's out of bounds
+                } else {
+                    ST = ST - 3;
+                }
+                break;
+        }
+    }
+
+    // Called by the dispatch loops when the fuel has run out, with the
+    // instruction about to run at cp already taken from it, and ST and LB
+    // up to date. Charges the instructions run since the last call against the
+    // budget, checks the other limits and takes any sample requested.
+    // Returns false if the run must stop before that instruction, with the
+    // status set unless the quantum is over.
+    boolean refuel(int cp) {
+        return refuel(cp, 1);
+    }
+
+    // As refuel(cp), for a dispatch loop that has taken the given number of
+    // instructions from the fuel for the block starting at cp.
+    boolean refuel(int cp, int charged) {
+        long used = granted - fuel;
+        CP = cp;
+        if (sampleRequested && (sampler != null)) {
+            sampleRequested = false;
+            sampler.sample(this);
+        }
+        if ((checkpointHandler != null) && (checkpointRequested || (used > nextCheckpoint))) {
+            // The instructions charged from cp on have not run yet, and the
+            // output written so far must not be lost if the run is resumed
+            // from the checkpoint.
+            long executed = used - charged;
+            checkpointRequested = false;
+            nextCheckpoint = (checkpointInterval > 0) ? executed + checkpointInterval : Long.MAX_VALUE;
+            try {
+                io.flush();
+            } catch (java.io.IOException s) {
+                status = FAILEDIOERROR;
+                return false;
+            }
+            checkpointHandler.accept(new Checkpoint(this, executed));
+        }
+        if (cancelled) {
+            status = FAILEDCANCELLED;
+        } else if ((timeLimit > 0) && (System.nanoTime() - deadline > 0)) {
+            status = FAILEDTIMELIMIT;
+        } else if (used > instructionLimit) {
+            status = FAILEDINSTRUCTIONLIMIT;
+        } else if (used > quantumEnd) {
+            // Parked, to be continued later.
+        } else {
+            fuel = Math.min((sampler != null) ? SAMPLEINTERVAL : CHECKINTERVAL,
+                    Math.min(Math.min(instructionLimit, nextCheckpoint), quantumEnd) - used);
+            granted = used + fuel;
+            return true;
+        }
+        return false;
+    }
+
+    // Accounts for count more characters of output. Returns false, with
+    // the status set, if they would exceed the output limit.
+    private boolean output(int count) {
+        if (outputCount + count > outputLimit) {
+            status = FAILEDOUTPUTLIMIT;
+            return false;
+        }
+        outputCount = outputCount + count;
+        return true;
+    }
+
+    private static int decimalLength(int value) {
+        int length = (value < 0) ? 2 : 1;
+        for (long remaining = Math.abs((long) value); remaining >= 10; remaining = remaining / 10) {
+            length++;
+        }
+        return length;
+    }
+
+    // Writes out any output still buffered by the I/O channel, at the end
+    // of a run.
+    void flushOutput() {
+        try {
+            io.flush();
+        } catch (java.io.IOException s) {
+            if (status == HALTED) {
+                status = FAILEDIOERROR;
+            }
+        }
+    }
+
+    void initializeRegisters() {
+        ST = SB;
+        HT = HB;
+        LB = SB;
+        CP = CB;
+        status = RUNNING;
+        resetDisplay();
+        heap.reset();
+        startRun(0, 0);
+        if (profile != null) {
+            profile.start();
+        }
+    }
+
+    // Starts the limit accounting of a run that has already executed the
+    // given number of instructions and written the given number of
+    // characters.
+    void startRun(long executed, long written) {
+        fuel = 0;
+        granted = executed;
+        outputCount = written;
+        inputPosition = 0;
+        deadline = System.nanoTime() + timeLimit;
+        nextCheckpoint = (checkpointInterval > 0) ? executed + checkpointInterval : Long.MAX_VALUE;
+        runCode = null;
+    }
+
+    /**
+     * Restores the state saved in the given checkpoint, and continues the
+     * run it was taken from in the interpreter until it halts or fails.
+     * The input is brought back to where it was by reading and discarding
+     * the characters the run had already read. The time limit starts
+     * again from now.
+     * @param checkpoint	the checkpoint to resume.
+     * @throws IllegalArgumentException if the checkpoint was taken from
+     *         another program or with another data store size.
+     */
+    public void resume(Checkpoint checkpoint) {
+        checkpoint.restore(this);
+        if (status == RUNNING) {
+            continueRun();
+        } else {
+            flushOutput();
+        }
+    }
+
+    /**
+     * Runs the program from CB until it halts or fails.
+     */
+    public void run() {
+        initializeRegisters();
+        continueRun();
+    }
+
+    void continueRun() {
+        // Runs the program from the current value of CP, without touching
+        // the other registers. CP, ST and LB live in locals while the loop
+        // runs, and are written back to the fields around every call that
+        // reads them.
+
+        final int[] data = this.data;
+        final long[] plain = image.words;
+        final Profile profile = this.profile;
+        if (runCode == null) {
+            runCode = ((fusion != null) && (profile == null)) ? fusion.fuse(plain)
+                    : (quickening ? plain.clone() : plain);
+        }
+        final long[] code = runCode;
+        final long[] counts = (profile != null) ? profile.counts : executionCounts;
+        final boolean quickening = this.quickening;
+        final int CT = this.CT;
+
+        long currentInstr;
+        int op, r, n, d, addr;
+        int cp = CP, st = ST, lb = LB;
+        long fuel = this.fuel;
+
+        if ((cp < CB) || (cp >= CT)) {
+            status = FAILEDINVALIDCODEADDRESS;
+            return;
+        }
+        if (cancelled) {
+            // Cancelled while parked.
+            status = FAILEDCANCELLED;
+            if (profile != null) {
+                profile.finish(granted - fuel);
+            }
+            return;
+        }
+        loop:
+        do {
+            if (--fuel < 0) {
+                this.fuel = fuel;
+                ST = st;
+                LB = lb;
+                if (!refuel(cp)) {
+                    if (status == RUNNING) {
+                        // The instruction at cp is charged again when the
+                        // run continues.
+                        fuel++;
+                    }
+                    break;
+                }
+                fuel = this.fuel;
+            }
+            if (counts != null) {
+                counts[cp]++;
+            }
+            // Fetch instruction ...
+            currentInstr = code[cp];
+            // Decode instruction ...
+            op = CodeImage.op(currentInstr);
+            if ((op > Machine.HALTop) && (op < Quickening.CALLPRIMop)) {
+                CP = cp;
+                ST = st;
+                LB = lb;
+                if (Superinstructions.execute(this, op, currentInstr, plain)) {
+                    cp = CP;
+                    st = ST;
+                } else {
+                    // The superinstruction cannot complete, so run the first
+                    // instruction of its sequence on its own.
+                    currentInstr = plain[cp];
+                    op = CodeImage.op(currentInstr);
+                }
+            }
+            r = CodeImage.r(currentInstr);
+            n = CodeImage.n(currentInstr);
+            d = CodeImage.d(currentInstr);
+            // Execute instruction ...
+            switch (op) {
+                case Machine.LOADop:
+                    if (quickening) {
+                        long quick = Quickening.quicken(currentInstr);
+                        if (quick != currentInstr) {
+                            code[cp] = quick;
+                        }
+                    }
+                    addr = d + content(r, cp, st, lb);
+                    if (HT - st < n) {
+                        status = FAILEDDATASTOREFULL;
+                    }
+                    System.arraycopy(data, addr, data, st, n);
+                    st = st + n;
+                    cp = cp + 1;
+                    break;
+                case Machine.LOADAop:
+                    addr = d + content(r, cp, st, lb);
+                    if (HT - st < 1) {
+                        status = FAILEDDATASTOREFULL;
+                    }
+                    data[st] = addr;
+                    st = st + 1;
+                    cp = cp + 1;
+                    break;
+                case Machine.LOADIop:
+                    st = st - 1;
+                    addr = data[st];
+                    if (HT - st < n) {
+                        status = FAILEDDATASTOREFULL;
+                    }
+                    System.arraycopy(data, addr, data, st, n);
+                    st = st + n;
+                    cp = cp + 1;
+                    break;
+                case Machine.LOADLop:
+                    if (HT - st < 1) {
+                        status = FAILEDDATASTOREFULL;
+                    }
+                    data[st] = d;
+                    st = st + 1;
+                    cp = cp + 1;
+                    break;
+                case Machine.STOREop:
+                    if (quickening) {
+                        long quick = Quickening.quicken(currentInstr);
+                        if (quick != currentInstr) {
+                            code[cp] = quick;
+                        }
+                    }
+                    addr = d + content(r, cp, st, lb);
+                    st = st - n;
+                    System.arraycopy(data, st, data, addr, n);
+                    cp = cp + 1;
+                    break;
+                case Machine.STOREIop:
+                    st = st - 1;
+                    addr = data[st];
+                    st = st - n;
+                    System.arraycopy(data, st, data, addr, n);
+                    cp = cp + 1;
+                    break;
+                case Machine.CALLop:
+                    if (quickening) {
+                        long quick = Quickening.quicken(currentInstr);
+                        if (quick != currentInstr) {
+                            code[cp] = quick;
+                        }
+                    }
+                    addr = d + content(r, cp, st, lb);
+                    if (addr >= Machine.PB) {
+                        if (waitsForInput(addr - Machine.PB)) {
+                            fuel++;
+                            break loop;
+                        }
+                        ST = st;
+                        callPrimitive(addr - Machine.PB);
+                        st = ST;
+                        cp = cp + 1;
+                    } else {
+                        if (HT - st < 3) {
+                            status = FAILEDDATASTOREFULL;
+                        }
+                        if ((0 <= n) && (n <= 15)) {
+                            data[st] = content(n, cp, st, lb); // static link
+                        } else {
+                            status = FAILEDINVALIDINSTRUCTION;
+                        }
+                        enterFrame(n, data[st]);
+                        if (profile != null) {
+                            profile.enter(addr, granted - fuel);
+                        }
+                        data[st + 1] = lb; // dynamic link
+                        data[st + 2] = cp + 1; // return address
+                        lb = st;
+                        st = st + 3;
+                        cp = addr;
+                    }
+                    break;
+                case Machine.CALLIop:
+                    if (waitsForInput(data[st - 1] - Machine.PB)) {
+                        fuel++;
+                        break loop;
+                    }
+                    st = st - 2;
+                    addr = data[st + 1];
+                    if (addr >= Machine.PB) {
+                        ST = st;
+                        callPrimitive(addr - Machine.PB);
+                        st = ST;
+                        cp = cp + 1;
+                    } else {
+                        // data[st] = static link already
+                        enterFrame(-1, data[st]);
+                        if (profile != null) {
+                            profile.enter(addr, granted - fuel);
+                        }
+                        data[st + 1] = lb; // dynamic link
+                        data[st + 2] = cp + 1; // return address
+                        lb = st;
+                        st = st + 3;
+                        cp = addr;
+                    }
+                    break;
+                case Machine.RETURNop:
+                    addr = lb - d;
+                    cp = data[lb + 2];
+                    lb = data[lb + 1];
+                    leaveFrame();
+                    if (profile != null) {
+                        profile.leave(granted - fuel);
+                    }
+                    st = st - n;
+                    System.arraycopy(data, st, data, addr, n);
+                    st = addr + n;
+                    break;
+                case Machine.PUSHop:
+                    if (HT - st < d) {
+                        status = FAILEDDATASTOREFULL;
+                    }
+                    st = st + d;
+                    cp = cp + 1;
+                    break;
+                case Machine.POPop:
+                    addr = st - n - d;
+                    st = st - n;
+                    System.arraycopy(data, st, data, addr, n);
+                    st = addr + n;
+                    cp = cp + 1;
+                    break;
+                case Machine.JUMPop:
+                    cp = d + content(r, cp, st, lb);
+                    break;
+                case Machine.JUMPIop:
+                    st = st - 1;
+                    cp = data[st];
+                    break;
+                case Machine.JUMPIFop:
+                    st = st - 1;
+                    if (data[st] == n) {
+                        cp = d + content(r, cp, st, lb);
+                    } else {
+                        cp = cp + 1;
+                    }
+                    break;
+                case Machine.HALTop:
+                    status = HALTED;
+                    break;
+                // Quickened instructions ...
+                case Quickening.CALLPRIMop:
+                    if (waitsForInput(d)) {
+                        fuel++;
+                        break loop;
+                    }
+                    ST = st;
+                    callPrimitive(d);
+                    st = ST;
+                    cp = cp + 1;
+                    break;
+                case Quickening.LOAD1op:
+                    addr = d + content(r, cp, st, lb);
+                    if (HT - st < 1) {
+                        status = FAILEDDATASTOREFULL;
+                    }
+                    data[st] = data[addr];
+                    st = st + 1;
+                    cp = cp + 1;
+                    break;
+                case Quickening.LOADSBop:
+                    if (HT - st < n) {
+                        status = FAILEDDATASTOREFULL;
+                    }
+                    System.arraycopy(data, d, data, st, n);
+                    st = st + n;
+                    cp = cp + 1;
+                    break;
+                case Quickening.LOADSB1op:
+                    if (HT - st < 1) {
+                        status = FAILEDDATASTOREFULL;
+                    }
+                    data[st] = data[d];
+                    st = st + 1;
+                    cp = cp + 1;
+                    break;
+                case Quickening.LOADLBop:
+                    addr = d + lb;
+                    if (HT - st < n) {
+                        status = FAILEDDATASTOREFULL;
+                    }
+                    System.arraycopy(data, addr, data, st, n);
+                    st = st + n;
+                    cp = cp + 1;
+                    break;
+                case Quickening.LOADLB1op:
+                    if (HT - st < 1) {
+                        status = FAILEDDATASTOREFULL;
+                    }
+                    data[st] = data[d + lb];
+                    st = st + 1;
+                    cp = cp + 1;
+                    break;
+                case Quickening.STORE1op:
+                    addr = d + content(r, cp, st, lb);
+                    st = st - 1;
+                    data[addr] = data[st];
+                    cp = cp + 1;
+                    break;
+                case Quickening.STORESB1op:
+                    st = st - 1;
+                    data[d] = data[st];
+                    cp = cp + 1;
+                    break;
+                case Quickening.STORELB1op:
+                    st = st - 1;
+                    data[d + lb] = data[st];
+                    cp = cp + 1;
+                    break;
+            }
+            if ((cp < CB) || (cp >= CT)) {
+                status = FAILEDINVALIDCODEADDRESS;
+            }
+        } while (status == RUNNING);
+        CP = cp;
+        ST = st;
+        LB = lb;
+        this.fuel = fuel;
+        if ((profile != null) && (status != RUNNING)) {
+            // A parked run keeps its routines open until it is continued.
+            profile.finish(granted - fuel);
+        }
+        flushOutput();
+    }
+}
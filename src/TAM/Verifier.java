@@ -0,0 +1,545 @@
+package TAM;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A load-time verifier for TAM code images, and the check-free
+ * interpreter loop that runs the images it accepts.
+ *
+ * <p>
+ * The verifier splits the code into the main program, entered at CB, and
+ * the routines entered by CALL instructions, and follows the control flow
+ * of each one without entering the routines it calls. It accepts the image
+ * only if
+ * </p>
+ * <ul>
+ * <li>every instruction reachable from an entry is a valid instruction,
+ * and never falls through past the end of the code;</li>
+ * <li>every JUMP and JUMPIF addresses its target through CB or SB, every
+ * CALL through CB, or PB for primitives, and the target is a valid code
+ * address or primitive routine;</li>
+ * <li>the stack depth, relative to the routine's frame, is the same along
+ * every path to each instruction, and never negative;</li>
+ * <li>every RETURN of a routine returns the same number of words and
+ * removes the same number of arguments;</li>
+ * <li>there is no CALLI or JUMPI, whose targets are only known at
+ * run-time.</li>
+ * </ul>
+ *
+ * <p>
+ * The analysis also yields the maximum stack depth of each routine. The
+ * loop in {@link #run(TamMachine)} then checks for space once per routine
+ * entry instead of on every push, and only checks the return address of
+ * a RETURN instead of CP after every instruction. As soon as a routine
+ * entry would not have enough space, or the program calls the new
+ * primitive, which moves HT, the run carries on in the checked loop of
+ * {@link TamMachine}, so failures are reported exactly as before.
+ * </p>
+ */
+public final class Verifier {
+
+    private final CodeImage image;
+    private final int size;
+
+    // Per code address: the entry of the routine it belongs to, or -1, and
+    // the stack depth before it executes.
+    private final int[] owner, depth;
+
+    // Per code address: whether analyze has given it a depth. Shared by all
+    // routines, and cleared by analyze of the addresses it set.
+    private final boolean[] seen;
+
+    // Per routine entry: the maximum stack depth, and the words returned
+    // and arguments removed by its RETURN instructions, or -1 if none is
+    // reachable.
+    private final int[] maxDepth, results, arguments;
+
+    private String problem;
+
+    /**
+     * Verifies the given code image.
+     * @param image	the code image to verify.
+     */
+    public Verifier(CodeImage image) {
+        this.image = image;
+        this.size = image.size;
+        owner = new int[size];
+        depth = new int[size];
+        seen = new boolean[size];
+        maxDepth = new int[size];
+        results = new int[size];
+        arguments = new int[size];
+        Arrays.fill(owner, -1);
+        Arrays.fill(results, -1);
+        Arrays.fill(arguments, -1);
+        verify();
+    }
+
+    /**
+     * Returns true if the image passed verification.
+     */
+    public boolean isVerified() {
+        return problem == null;
+    }
+
+    /**
+     * Returns why the image failed verification, or <code>null</code> if it
+     * passed.
+     */
+    public String getProblem() {
+        return problem;
+    }
+
+    // VERIFICATION
+
+    private boolean fail(int addr, String reason) {
+        if (problem == null) {
+            problem = "Instruction " + addr + ": " + reason;
+        }
+        return false;
+    }
+
+    private boolean isEquality(int addr) {
+        long word = image.words[addr];
+        return (CodeImage.op(word) == Machine.CALLop) && (CodeImage.r(word) == Machine.PBr)
+                && ((CodeImage.d(word) == Machine.eqDisplacement)
+                || (CodeImage.d(word) == Machine.neDisplacement));
+    }
+
+    // Returns the number of words the given primitive pops and pushes, or
+    // null if it is not a primitive. The size operand of eq and ne is the
+    // word pushed just before the call.
+    private int[] primitiveEffect(int displacement, int addr) {
+        switch (displacement) {
+            case Machine.idDisplacement, Machine.notDisplacement, Machine.succDisplacement,
+                    Machine.predDisplacement, Machine.negDisplacement, Machine.newDisplacement:
+                return new int[]{1, 1};
+            case Machine.andDisplacement, Machine.orDisplacement, Machine.addDisplacement,
+                    Machine.subDisplacement, Machine.multDisplacement, Machine.divDisplacement,
+                    Machine.modDisplacement, Machine.ltDisplacement, Machine.leDisplacement,
+                    Machine.geDisplacement, Machine.gtDisplacement:
+                return new int[]{2, 1};
+            case Machine.eqDisplacement, Machine.neDisplacement:
+                if ((addr > Machine.CB) && (CodeImage.op(image.words[addr - 1]) == Machine.LOADLop)
+                        && (CodeImage.d(image.words[addr - 1]) >= 0)) {
+                    return new int[]{2 * CodeImage.d(image.words[addr - 1]) + 1, 1};
+                }
+                return null;
+            case Machine.eolDisplacement, Machine.eofDisplacement:
+                return new int[]{0, 1};
+            case Machine.getDisplacement, Machine.putDisplacement, Machine.getintDisplacement,
+                    Machine.putintDisplacement:
+                return new int[]{1, 0};
+            case Machine.geteolDisplacement, Machine.puteolDisplacement:
+                return new int[]{0, 0};
+            case Machine.disposeDisplacement:
+                return new int[]{2, 0};
+            case Machine.indexCheckDisplacement:
+                return new int[]{3, 0};
+            default:
+                return null;
+        }
+    }
+
+    private void verify() {
+        // Find the routine entries, and what each of them returns.
+        boolean[] entry = new boolean[size];
+        entry[Machine.CB] = size > Machine.CB;
+        for (int addr = Machine.CB; addr < size; addr++) {
+            long word = image.words[addr];
+            if ((CodeImage.op(word) == Machine.CALLop) && (CodeImage.r(word) == Machine.CBr)) {
+                int target = CodeImage.d(word) + Machine.CB;
+                if ((target < Machine.CB) || (target >= size)) {
+                    fail(addr, "call to invalid code address " + target);
+                    return;
+                }
+                entry[target] = true;
+            }
+        }
+        if (size == Machine.CB) {
+            fail(Machine.CB, "no code");
+            return;
+        }
+        for (int addr = Machine.CB; addr < size; addr++) {
+            if (entry[addr] && !summarize(addr)) {
+                return;
+            }
+        }
+        for (int addr = Machine.CB; addr < size; addr++) {
+            if (entry[addr] && !analyze(addr)) {
+                return;
+            }
+        }
+    }
+
+    // Returns the addresses that can follow the instruction at addr within
+    // its routine, checking that they are valid code addresses. A call
+    // counts as falling through, whether or not the callee returns.
+    private int[] successors(int addr) {
+        long word = image.words[addr];
+        int op = CodeImage.op(word), r = CodeImage.r(word), n = CodeImage.n(word),
+                d = CodeImage.d(word);
+        int[] next;
+        switch (op) {
+            case Machine.LOADop, Machine.LOADAop, Machine.LOADIop, Machine.LOADLop,
+                    Machine.STOREop, Machine.STOREIop, Machine.PUSHop, Machine.POPop:
+                next = new int[]{addr + 1};
+                break;
+            case Machine.CALLop:
+                if ((n < 0) || (n > Machine.CPr)) {
+                    fail(addr, "invalid static link register " + n);
+                    return null;
+                }
+                if (r == Machine.PBr) {
+                    if (primitiveEffect(d, addr) == null) {
+                        fail(addr, "call to unknown or unanalysable primitive " + d);
+                        return null;
+                    }
+                } else if (r != Machine.CBr) {
+                    fail(addr, "call through register " + r);
+                    return null;
+                }
+                next = new int[]{addr + 1};
+                break;
+            case Machine.JUMPop:
+            case Machine.JUMPIFop:
+                // The encoder addresses some jumps through SB, which is
+                // as fixed as CB, and equal to it.
+                if ((r != Machine.CBr) && (r != Machine.SBr)) {
+                    fail(addr, "jump through register " + r);
+                    return null;
+                }
+                next = (op == Machine.JUMPop) ? new int[]{d + Machine.CB}
+                        : new int[]{d + Machine.CB, addr + 1};
+                break;
+            case Machine.RETURNop:
+            case Machine.HALTop:
+                next = new int[0];
+                break;
+            case Machine.CALLIop:
+            case Machine.JUMPIop:
+                fail(addr, "computed control transfer");
+                return null;
+            default:
+                fail(addr, "invalid instruction");
+                return null;
+        }
+        for (int target : next) {
+            if ((target < Machine.CB) || (target >= size)) {
+                fail(addr, "control reaches invalid code address " + target);
+                return null;
+            }
+            if ((target != addr + 1) && isEquality(target)) {
+                // The size operand of eq and ne must come from the LOADL
+                // just before the call.
+                fail(addr, "jump to equality test " + target);
+                return null;
+            }
+        }
+        return next;
+    }
+
+    // Marks the instructions of the routine entered at entry, and records
+    // what its RETURN instructions return.
+    private boolean summarize(int entry) {
+        Deque<Integer> work = new ArrayDeque<>();
+        owner[entry] = entry;
+        work.push(entry);
+        while (!work.isEmpty()) {
+            int addr = work.pop();
+            long word = image.words[addr];
+            if (CodeImage.op(word) == Machine.RETURNop) {
+                int n = CodeImage.n(word), d = CodeImage.d(word);
+                if ((results[entry] == -1) && (arguments[entry] == -1)) {
+                    results[entry] = n;
+                    arguments[entry] = d;
+                } else if ((results[entry] != n) || (arguments[entry] != d)) {
+                    return fail(addr, "RETURN differs from other returns of routine " + entry);
+                }
+            }
+            int[] next = successors(addr);
+            if (next == null) {
+                return false;
+            }
+            for (int target : next) {
+                if (owner[target] == -1) {
+                    owner[target] = entry;
+                    work.push(target);
+                } else if (owner[target] != entry) {
+                    return fail(addr, "control passes from routine " + entry
+                            + " into routine " + owner[target]);
+                }
+            }
+        }
+        return true;
+    }
+
+    // Computes the stack depth before every instruction of the routine
+    // entered at entry, and its maximum.
+    private boolean analyze(int entry) {
+        List<Integer> reached = new ArrayList<>();
+        try {
+            return analyze(entry, reached);
+        } finally {
+            for (int addr : reached) {
+                seen[addr] = false;
+            }
+        }
+    }
+
+    // As analyze(entry), adding every address it marks as seen to reached.
+    private boolean analyze(int entry, List<Integer> reached) {
+        Deque<Integer> work = new ArrayDeque<>();
+        int max = 0;
+        depth[entry] = 0;
+        seen[entry] = true;
+        reached.add(entry);
+        work.push(entry);
+        while (!work.isEmpty()) {
+            int addr = work.pop();
+            long word = image.words[addr];
+            int op = CodeImage.op(word), r = CodeImage.r(word), n = CodeImage.n(word),
+                    d = CodeImage.d(word);
+            int before = depth[addr], pops, pushes;
+            switch (op) {
+                case Machine.LOADop, Machine.LOADIop:
+                    pops = (op == Machine.LOADIop) ? 1 : 0;
+                    pushes = n;
+                    break;
+                case Machine.LOADAop, Machine.LOADLop:
+                    pops = 0;
+                    pushes = 1;
+                    break;
+                case Machine.STOREop, Machine.STOREIop:
+                    pops = n + ((op == Machine.STOREIop) ? 1 : 0);
+                    pushes = 0;
+                    break;
+                case Machine.CALLop:
+                    if (r == Machine.PBr) {
+                        int[] effect = primitiveEffect(d, addr);
+                        pops = effect[0];
+                        pushes = effect[1];
+                    } else {
+                        int target = d + Machine.CB;
+                        if (results[target] == -1) {
+                            // The callee never returns.
+                            continue;
+                        }
+                        pops = arguments[target];
+                        pushes = results[target];
+                    }
+                    break;
+                case Machine.PUSHop:
+                    if (d < 0) {
+                        return fail(addr, "negative PUSH");
+                    }
+                    pops = 0;
+                    pushes = d;
+                    break;
+                case Machine.POPop:
+                    pops = n + d;
+                    pushes = n;
+                    break;
+                case Machine.JUMPIFop:
+                    pops = 1;
+                    pushes = 0;
+                    break;
+                case Machine.RETURNop:
+                    pops = n;
+                    pushes = 0;
+                    break;
+                default:
+                    pops = 0;
+                    pushes = 0;
+                    break;
+            }
+            if ((n < 0) || (pops > before)) {
+                return fail(addr, "stack underflow");
+            }
+            int after = before - pops + pushes;
+            max = Math.max(max, Math.max(after, before + ((op == Machine.CALLop) ? 0 : pushes)));
+            int[] next = successors(addr);
+            for (int target : next) {
+                if (!seen[target]) {
+                    seen[target] = true;
+                    reached.add(target);
+                    depth[target] = after;
+                    work.push(target);
+                } else if (depth[target] != after) {
+                    return fail(target, "inconsistent stack depth");
+                }
+            }
+        }
+        maxDepth[entry] = max;
+        return true;
+    }
+
+    // EXECUTION
+
+    /**
+     * Runs the verified program from CB until it halts or fails, leaving
+     * the final machine state in the given machine.
+     * @param m	the machine to run on, loaded with the same code image.
+     * @throws IllegalStateException if the image did not pass verification.
+     */
+    public void run(TamMachine m) {
+        if (problem != null) {
+            throw new IllegalStateException(problem);
+        }
+        m.initializeRegisters();
+        if (m.HT - TamMachine.SB >= maxDepth[Machine.CB]) {
+            continueRun(m);
+        }
+        if (m.status == TamMachine.RUNNING) {
+            m.continueRun();
+        } else {
+            m.flushOutput();
+        }
+    }
+
+    // Runs from CP until the program stops, or leaves the rest of the run to
+    // the checked loop, with the status still RUNNING.
+    private void continueRun(TamMachine m) {
+        final int[] data = m.data;
+        final long[] code = image.words;
+        final int[] maxDepth = this.maxDepth;
+
+        long currentInstr;
+        int op, r, n, d, addr;
+        int cp = m.CP, st = m.ST, lb = m.LB;
+        long fuel = m.fuel;
+
+        loop:
+        while (true) {
+            if (--fuel < 0) {
+                m.fuel = fuel;
+                m.ST = st;
+                m.LB = lb;
+                if (!m.refuel(cp)) {
+                    break;
+                }
+                fuel = m.fuel;
+            }
+            currentInstr = code[cp];
+            op = CodeImage.op(currentInstr);
+            r = CodeImage.r(currentInstr);
+            n = CodeImage.n(currentInstr);
+            d = CodeImage.d(currentInstr);
+            switch (op) {
+                case Machine.LOADop:
+                    addr = d + m.content(r, cp, st, lb);
+                    System.arraycopy(data, addr, data, st, n);
+                    st = st + n;
+                    cp = cp + 1;
+                    break;
+                case Machine.LOADAop:
+                    data[st] = d + m.content(r, cp, st, lb);
+                    st = st + 1;
+                    cp = cp + 1;
+                    break;
+                case Machine.LOADIop:
+                    st = st - 1;
+                    addr = data[st];
+                    System.arraycopy(data, addr, data, st, n);
+                    st = st + n;
+                    cp = cp + 1;
+                    break;
+                case Machine.LOADLop:
+                    data[st] = d;
+                    st = st + 1;
+                    cp = cp + 1;
+                    break;
+                case Machine.STOREop:
+                    addr = d + m.content(r, cp, st, lb);
+                    st = st - n;
+                    System.arraycopy(data, st, data, addr, n);
+                    cp = cp + 1;
+                    break;
+                case Machine.STOREIop:
+                    st = st - 1;
+                    addr = data[st];
+                    st = st - n;
+                    System.arraycopy(data, st, data, addr, n);
+                    cp = cp + 1;
+                    break;
+                case Machine.CALLop:
+                    if (r == Machine.PBr) {
+                        if (d == Machine.newDisplacement) {
+                            // HT is about to move below the space checked
+                            // at routine entry.
+                            break loop;
+                        }
+                        m.ST = st;
+                        m.callPrimitive(d);
+                        st = m.ST;
+                        if (m.status != TamMachine.RUNNING) {
+                            break loop;
+                        }
+                        cp = cp + 1;
+                    } else {
+                        addr = d + Machine.CB;
+                        if (m.HT - st < Machine.linkDataSize + maxDepth[addr]) {
+                            break loop;
+                        }
+                        data[st] = m.content(n, cp, st, lb); // static link
+                        m.enterFrame(n, data[st]);
+                        data[st + 1] = lb; // dynamic link
+                        data[st + 2] = cp + 1; // return address
+                        lb = st;
+                        st = st + 3;
+                        cp = addr;
+                    }
+                    break;
+                case Machine.RETURNop:
+                    addr = lb - d;
+                    cp = data[lb + 2];
+                    lb = data[lb + 1];
+                    m.leaveFrame();
+                    st = st - n;
+                    System.arraycopy(data, st, data, addr, n);
+                    st = addr + n;
+                    if ((cp < Machine.CB) || (cp >= size)) {
+                        m.status = TamMachine.FAILEDINVALIDCODEADDRESS;
+                        break loop;
+                    }
+                    break;
+                case Machine.PUSHop:
+                    st = st + d;
+                    cp = cp + 1;
+                    break;
+                case Machine.POPop:
+                    addr = st - n - d;
+                    st = st - n;
+                    System.arraycopy(data, st, data, addr, n);
+                    st = addr + n;
+                    cp = cp + 1;
+                    break;
+                case Machine.JUMPop:
+                    cp = d + Machine.CB;
+                    break;
+                case Machine.JUMPIFop:
+                    st = st - 1;
+                    if (data[st] == n) {
+                        cp = d + Machine.CB;
+                    } else {
+                        cp = cp + 1;
+                    }
+                    break;
+                default:
+                    // HALT: verified code holds no other instructions.
+                    m.status = TamMachine.HALTED;
+                    break loop;
+            }
+        }
+        // A run that breaks out early has not started the instruction at
+        // cp, so give its fuel back.
+        m.CP = cp;
+        m.ST = st;
+        m.LB = lb;
+        m.fuel = fuel + ((m.status == TamMachine.RUNNING) ? 1 : 0);
+    }
+}
@@ -0,0 +1,356 @@
+package TAM;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A pool of warm worker JVMs that run TAM programs out of process, for
+ * programs that cannot be trusted.
+ *
+ * <p>
+ * Each worker is a separate JVM running {@link #main}, with its own heap
+ * of a fixed size, and runs one job at a time. The code image, the limits
+ * and the whole input of a job are written to the worker's standard input,
+ * and the worker writes back the final status, the number of instructions
+ * executed and the output. The worker enforces the job's data store size,
+ * heap, instruction, time and output limits as an in-process run does.
+ * The pool enforces them as well: a worker that has not answered within
+ * the time limit and a grace period is killed, and so is one whose answer
+ * breaks the output limit. A worker that is killed or dies, busy or idle,
+ * is replaced in the background by a fresh one.
+ * </p>
+ *
+ * <p>
+ * The messages are big-endian. A job is the number of instructions and the
+ * packed instructions, then the store size, the instruction limit, the
+ * time limit in milliseconds, the output limit, the heap limit, and the
+ * length and bytes of the input. An answer is the four bytes
+ * <code>TAMA</code>, the status, the number of instructions, the number of
+ * characters written, which the output limit counts, and the length and
+ * bytes of the output.
+ * </p>
+ */
+public final class WorkerPool implements AutoCloseable {
+
+    /**
+     * The status of a job whose worker died, or broke the protocol, before
+     * answering.
+     */
+    public final static int WORKERFAILED = -1;
+
+    // The time, in milliseconds, a worker is given beyond a job's time
+    // limit before it is killed.
+    private final static long GRACE = 1000;
+
+    // The first word of every answer, so that anything else a worker's JVM
+    // writes to its standard output is not taken for one.
+    private final static int ANSWER = 0x54414D41; // "TAMA"
+
+    // The most bytes a character of output can be encoded in, allowing
+    // for a line separator of two characters.
+    private final static int MAXCHARBYTES = 4;
+
+    private final List<String> command;
+    private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<>();
+    private final List<Worker> workers = new ArrayList<>();
+    private final ScheduledExecutorService maintenance;
+    private volatile boolean closed;
+
+    // A worker process and the ends of its pipes.
+    private static final class Worker {
+        final Process process;
+        final DataOutputStream toWorker;
+        final DataInputStream fromWorker;
+
+        Worker(Process process) {
+            this.process = process;
+            this.toWorker = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            this.fromWorker = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+    }
+
+    /**
+     * The outcome of a job.
+     */
+    public static final class Result {
+
+        private final int status;
+        private final long instructions;
+        private final byte[] output;
+
+        private Result(int status, long instructions, byte[] output) {
+            this.status = status;
+            this.instructions = instructions;
+            this.output = output;
+        }
+
+        /**
+         * Returns the final status of the run, one of the status codes of
+         * {@link TamMachine}, or {@link #WORKERFAILED}.
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * Returns the number of instructions the run executed, or 0 if its
+         * worker failed.
+         */
+        public long getInstructionCount() {
+            return instructions;
+        }
+
+        /**
+         * Returns the output of the run, or what its worker reported of it.
+         */
+        public byte[] getOutput() {
+            return output;
+        }
+    }
+
+    /**
+     * Starts a pool of workers, which use the same Java runtime and class
+     * path as this JVM.
+     * @param workerCount	the number of workers.
+     * @param workerMemory	the maximum heap size of each worker, in
+     *			megabytes.
+     * @throws IOException if a worker cannot be started.
+     */
+    public WorkerPool(int workerCount, int workerMemory) throws IOException {
+        command = List.of(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Xmx" + workerMemory + "m", "-XX:+ExitOnOutOfMemoryError", "-XX:+UseSerialGC",
+                "-cp", System.getProperty("java.class.path"),
+                WorkerPool.class.getName());
+        maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "TAM worker pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (int index = 0; index < Math.max(1, workerCount); index++) {
+                idle.add(startWorker());
+            }
+        } catch (IOException s) {
+            close();
+            throw s;
+        }
+    }
+
+    private Worker startWorker() throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Worker worker = new Worker(builder.start());
+        synchronized (workers) {
+            workers.add(worker);
+        }
+        // A worker that dies while idle is replaced at once.
+        worker.process.onExit().thenRun(() -> {
+            if (idle.remove(worker)) {
+                replace(worker);
+            }
+        });
+        return worker;
+    }
+
+    // Kills the worker and starts another in its place, retrying every
+    // second while that fails.
+    private void replace(Worker worker) {
+        worker.process.destroyForcibly();
+        synchronized (workers) {
+            workers.remove(worker);
+        }
+        if (!closed) {
+            maintenance.execute(this::addWorker);
+        }
+    }
+
+    private void addWorker() {
+        if (closed) {
+            return;
+        }
+        try {
+            idle.add(startWorker());
+        } catch (IOException s) {
+            System.err.println("Error starting TAM worker: " + s);
+            maintenance.schedule(this::addWorker, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Runs a program in the next free worker, waiting for one if they are
+     * all busy.
+     * @param image	the program to run.
+     * @param input	the whole input of the run.
+     * @param storeSize	the data store size, in words.
+     * @param instructionLimit	the instruction budget.
+     * @param timeLimit	the time limit in milliseconds, or 0 for none, in
+     *			which case the worker is never killed for taking too
+     *			long.
+     * @param outputLimit	the output limit, in characters.
+     * @param heapLimit	the heap limit, in words.
+     * @return the outcome of the run.
+     * @throws InterruptedException if interrupted while waiting for a
+     *         free worker.
+     */
+    public Result execute(CodeImage image, byte[] input, int storeSize, long instructionLimit,
+            long timeLimit, long outputLimit, int heapLimit) throws InterruptedException {
+        Worker worker = idle.take();
+        while (!worker.process.isAlive()) {
+            replace(worker);
+            worker = idle.take();
+        }
+
+        final Worker running = worker;
+        AtomicBoolean timedOut = new AtomicBoolean();
+        ScheduledFuture<?> deadline = null;
+        if (timeLimit > 0) {
+            deadline = maintenance.schedule(() -> {
+                timedOut.set(true);
+                running.process.destroyForcibly();
+            }, timeLimit + GRACE, TimeUnit.MILLISECONDS);
+        }
+        try {
+            DataOutputStream to = running.toWorker;
+            to.writeInt(image.size);
+            for (int addr = 0; addr < image.size; addr++) {
+                to.writeLong(image.words[addr]);
+            }
+            to.writeInt(storeSize);
+            to.writeLong(instructionLimit);
+            to.writeLong(timeLimit);
+            to.writeLong(outputLimit);
+            to.writeInt(heapLimit);
+            to.writeInt(input.length);
+            to.write(input);
+            to.flush();
+
+            DataInputStream from = running.fromWorker;
+            if (from.readInt() != ANSWER) {
+                throw new IOException("Worker broke the protocol");
+            }
+            int status = from.readInt();
+            long instructions = from.readLong();
+            long characters = from.readLong();
+            int length = from.readInt();
+            if ((characters < 0) || (characters > outputLimit)) {
+                throw new IOException("Worker broke the output limit");
+            }
+            if ((length < 0) || (length / MAXCHARBYTES > characters)) {
+                throw new IOException("Worker broke the protocol");
+            }
+            // Read as it arrives, so that a worker that dies part way does
+            // not cost the whole length.
+            byte[] output = from.readNBytes(length);
+            if (output.length < length) {
+                throw new EOFException();
+            }
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            if (!timedOut.get()) {
+                idle.add(running);
+                return new Result(status, instructions, output);
+            }
+        } catch (IOException s) {
+            // the worker died, was killed or misbehaved
+        }
+        if (deadline != null) {
+            deadline.cancel(false);
+        }
+        replace(running);
+        return new Result(timedOut.get() ? TamMachine.FAILEDTIMELIMIT : WORKERFAILED, 0, new byte[0]);
+    }
+
+    /**
+     * Stops all the workers. Jobs still running fail with
+     * {@link #WORKERFAILED}.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        maintenance.shutdownNow();
+        idle.clear();
+        synchronized (workers) {
+            for (Worker worker : workers) {
+                worker.process.destroyForcibly();
+            }
+            workers.clear();
+        }
+    }
+
+// WORKER
+    /**
+     * The main program of a worker: runs the jobs read from standard input
+     * and writes their answers to standard output until its input ends. The
+     * programs' output never reaches the real standard output.
+     */
+    public static void main(String[] args) {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        System.setOut(System.err);
+        try {
+            while (true) {
+                int size;
+                try {
+                    size = in.readInt();
+                } catch (EOFException s) {
+                    return;
+                }
+                if ((size <= Machine.CB) || (size > Machine.PB)) {
+                    throw new IOException("Invalid code size " + size);
+                }
+                long[] words = new long[size];
+                for (int addr = 0; addr < size; addr++) {
+                    words[addr] = in.readLong();
+                }
+                int storeSize = in.readInt();
+                long instructionLimit = in.readLong();
+                long timeLimit = in.readLong();
+                long outputLimit = in.readLong();
+                int heapLimit = in.readInt();
+                byte[] input = new byte[in.readInt()];
+                in.readFully(input);
+
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                PrintStream programOut = new PrintStream(buffer);
+                TamMachine m = new TamMachine(new CodeImage(words), new ByteArrayInputStream(input),
+                        programOut, Math.max(1, Math.min(storeSize, TamMachine.MAXSTORESIZE)));
+                m.setInstructionLimit(instructionLimit);
+                m.setTimeLimit(timeLimit);
+                m.setOutputLimit(outputLimit);
+                m.setHeapLimit(heapLimit);
+                m.run();
+                programOut.flush();
+
+                out.writeInt(ANSWER);
+                out.writeInt(m.getStatus());
+                out.writeLong(m.getInstructionCount());
+                out.writeLong(m.outputCount);
+                out.writeInt(buffer.size());
+                buffer.writeTo(out);
+                out.flush();
+            }
+        } catch (IOException s) {
+            System.err.println("TAM worker stopped: " + s);
+        }
+    }
+}
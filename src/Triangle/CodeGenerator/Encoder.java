@@ -14,13 +14,17 @@
 
 package Triangle.CodeGenerator;
 
-import java.io.DataOutputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
 
+import TAM.CodeImage;
 import TAM.Instruction;
 import TAM.Machine;
+import TAM.ObjectFile;
 import Triangle.AbstractSyntaxTrees.*;
 import Triangle.ErrorReporter;
 import Triangle.StdEnvironment;
@@ -33,6 +37,7 @@ public final class Encoder implements Visitor {
   @Override
   public Object visitAssignCommand(AssignCommand ast, Object o) {
     Frame frame = (Frame) o;
+    markLine(ast);
     Integer valSize = (Integer) ast.E.visit(this, frame);
     encodeStore(ast.V, new Frame (frame, valSize), valSize);
     return null;
@@ -41,6 +46,7 @@ public final class Encoder implements Visitor {
   @Override
   public Object visitCallCommand(CallCommand ast, Object o) {
     Frame frame = (Frame) o;
+    markLine(ast);
     Integer argsSize = (Integer) ast.APS.visit(this, frame);
     ast.I.visit(this, new Frame(frame.level, argsSize));
     return null;
@@ -55,6 +61,7 @@ public final class Encoder implements Visitor {
   public Object visitIfCommand(IfCommand ast, Object o) {
     Frame frame = (Frame) o;
     int jumpifAddr, jumpAddr;
+    markLine(ast);
     ast.E.visit(this, frame);
     jumpifAddr = nextInstrAddr;
     emit(Machine.JUMPIFop, Machine.falseRep, Machine.CBr, 0);
@@ -70,6 +77,7 @@ public final class Encoder implements Visitor {
   @Override
   public Object visitLetCommand(LetCommand ast, Object o) {
     Frame frame = (Frame) o;
+    markLine(ast);
     int extraSize = ((Integer) ast.D.visit(this, frame));
     ast.C.visit(this, new Frame(frame, extraSize));
     if (extraSize > 0)
@@ -87,6 +95,7 @@ public final class Encoder implements Visitor {
   @Override
   public Object visitForLoopCommand(ForLoopCommand ast, Object o) {
     Frame frame = (Frame) o; // Load the frame
+    markLine(ast);
     
     // Load the halting expression
     int haltingExpressionSize = (Integer) ast.HaltingExpression.visit(this, frame);
@@ -103,6 +112,7 @@ public final class Encoder implements Visitor {
     emit(Machine.JUMPop, 0, Machine.SBr, 0);
     loopAddr = nextInstrAddr;
     ast.C.visit(this, frame);//Command
+    markLine(ast);
     
     // Now, update control variable value, it's on top of the Stack
     emit(Machine.CALLop, Machine.SBr, Machine.PBr, Machine.succDisplacement);//Increase value of control
@@ -127,11 +137,13 @@ public final class Encoder implements Visitor {
   public Object visitWhileLoopCommand(WhileLoopCommand ast, Object o) {
     Frame frame = (Frame) o;
     int jumpAddr, loopAddr;
+    markLine(ast);
     jumpAddr = nextInstrAddr;
     emit(Machine.JUMPop, 0, Machine.CBr, 0);
     loopAddr = nextInstrAddr;
     ast.C.visit(this, frame);
     patchD(jumpAddr, nextInstrAddr);
+    markLine(ast.E);
     ast.E.visit(this, frame);
     emit(Machine.JUMPIFop, Machine.trueRep, Machine.CBr, loopAddr);
     return null;
@@ -141,8 +153,10 @@ public final class Encoder implements Visitor {
   public Object visitDoWhileLoopCommand(DoWhileLoopCommand ast, Object o) {
     Frame frame = (Frame) o;
     int loopAddr;
+    markLine(ast);
     loopAddr = nextInstrAddr;
     ast.C.visit(this, frame);
+    markLine(ast.E);
     ast.E.visit(this, frame);
     emit(Machine.JUMPIFop, Machine.trueRep, Machine.CBr, loopAddr);
     return null;
@@ -153,11 +167,13 @@ public final class Encoder implements Visitor {
   public Object visitUntilLoopCommand(UntilLoopCommand ast, Object o) {
     Frame frame = (Frame) o;
     int jumpAddr, loopAddr;
+    markLine(ast);
     jumpAddr = nextInstrAddr;
     emit(Machine.JUMPop, 0, Machine.CBr, 0);
     loopAddr = nextInstrAddr;
     ast.C.visit(this, frame);
     patchD(jumpAddr, nextInstrAddr);
+    markLine(ast.E);
     ast.E.visit(this, frame);
     emit(Machine.JUMPIFop, Machine.falseRep, Machine.CBr, loopAddr);
     return null;
@@ -167,8 +183,10 @@ public final class Encoder implements Visitor {
   public Object visitDoUntilLoopCommand(DoUntilLoopCommand ast, Object o) {
     Frame frame = (Frame) o;
     int loopAddr;
+    markLine(ast);
     loopAddr = nextInstrAddr;
     ast.C.visit(this, frame);
+    markLine(ast.E);
     ast.E.visit(this, frame);
     emit(Machine.JUMPIFop, Machine.falseRep, Machine.CBr, loopAddr);
     return null;
@@ -314,8 +332,10 @@ public final class Encoder implements Visitor {
     int jumpAddr = nextInstrAddr;
     int argsSize = 0, valSize = 0;
 
+    markLine(ast);
     emit(Machine.JUMPop, 0, Machine.CBr, 0);
     ast.entity = new KnownRoutine(Machine.closureSize, frame.level, nextInstrAddr);
+    addEntryPoint(ast.I.spelling);
     writeTableDetails(ast);
     if (frame.level == Machine.maxRoutineLevel)
       reporter.reportRestriction("can't nest routines more than 7 deep");
@@ -336,9 +356,11 @@ public final class Encoder implements Visitor {
     int jumpAddr = nextInstrAddr;
     int argsSize = 0;
 
+    markLine(ast);
     emit(Machine.JUMPop, 0, Machine.CBr, 0);
     ast.entity = new KnownRoutine (Machine.closureSize, frame.level,
             nextInstrAddr);
+    addEntryPoint(ast.I.spelling);
     writeTableDetails(ast);
     if (frame.level == Machine.maxRoutineLevel)
       reporter.reportRestriction("can't nest routines so deeply");
@@ -568,7 +590,7 @@ public final class Encoder implements Visitor {
       ObjectAddress address = ((KnownRoutine) ast.I.decl.entity).address;
       // static link, code address
       emit(Machine.LOADAop, 0, displayRegister(frame.level, address.level), 0);
-      emit(Machine.LOADAop, 0, Machine.CBr, address.displacement);
+      emitRoutineAddress(Machine.LOADAop, 0, (KnownRoutine) ast.I.decl.entity);
     } else if (ast.I.decl.entity instanceof UnknownRoutine) {
       ObjectAddress address = ((UnknownRoutine) ast.I.decl.entity).address;
       emit(Machine.LOADop, Machine.closureSize, displayRegister(frame.level,
@@ -589,7 +611,7 @@ public final class Encoder implements Visitor {
       ObjectAddress address = ((KnownRoutine) ast.I.decl.entity).address;
       // static link, code address
       emit(Machine.LOADAop, 0, displayRegister(frame.level, address.level), 0);
-      emit(Machine.LOADAop, 0, Machine.CBr, address.displacement);
+      emitRoutineAddress(Machine.LOADAop, 0, (KnownRoutine) ast.I.decl.entity);
     } else if (ast.I.decl.entity instanceof UnknownRoutine) {
       ObjectAddress address = ((UnknownRoutine) ast.I.decl.entity).address;
       emit(Machine.LOADop, Machine.closureSize, displayRegister(frame.level,
@@ -757,8 +779,8 @@ public final class Encoder implements Visitor {
 
     else if (ast.decl.entity instanceof KnownRoutine) {
       ObjectAddress address = ((KnownRoutine) ast.decl.entity).address;
-      emit(Machine.CALLop, displayRegister(frame.level, address.level),
-              Machine.CBr, address.displacement);
+      emitRoutineAddress(Machine.CALLop, displayRegister(frame.level, address.level),
+              (KnownRoutine) ast.decl.entity);
     } else if (ast.decl.entity instanceof UnknownRoutine) {
       ObjectAddress address = ((UnknownRoutine) ast.decl.entity).address;
       emit(Machine.LOADop, Machine.closureSize, displayRegister(frame.level,
@@ -786,8 +808,8 @@ public final class Encoder implements Visitor {
     Frame frame = (Frame) o;
     if (ast.decl.entity instanceof KnownRoutine) {
       ObjectAddress address = ((KnownRoutine) ast.decl.entity).address;
-      emit(Machine.CALLop, displayRegister (frame.level, address.level),
-              Machine.CBr, address.displacement);
+      emitRoutineAddress(Machine.CALLop, displayRegister (frame.level, address.level),
+              (KnownRoutine) ast.decl.entity);
     } else if (ast.decl.entity instanceof UnknownRoutine) {
       ObjectAddress address = ((UnknownRoutine) ast.decl.entity).address;
       emit(Machine.LOADop, Machine.closureSize, displayRegister(frame.level,
@@ -890,6 +912,44 @@ public final class Encoder implements Visitor {
     emit(Machine.HALTop, 0, 0, 0);
   }
 
+  // Generates code for the routines of a library, to be linked into
+  // programs. A library can't have variables, or constants whose values
+  // are only known at run time, since they would have to live in the data
+  // store of every program that uses it.
+  public final void encodeLibrary (Declaration theAST, boolean showingTable) {
+    tableDetailsReqd = showingTable;
+    libraryAST = theAST;
+    int extraSize = ((Integer) theAST.visit(this, new Frame (0, 0)));
+    if (extraSize > 0)
+      reporter.reportError("a library can't declare variables, or constants that aren't literals",
+              "", theAST.position);
+  }
+
+  // Decides the run-time representation of what a compiled library
+  // exports, given its interface, for the program about to be encoded.
+  // path is the library's path relative to the object program.
+  public void elaborateLibrary (Declaration interfaceAST, String path, int checksum) {
+    libraryPaths.add(path);
+    libraryChecksums.add(checksum);
+    elaborateInterface(interfaceAST, libraryPaths.size() - 1);
+  }
+
+  private void elaborateInterface (Declaration ast, int library) {
+    if (ast instanceof SequentialDeclaration) {
+      elaborateInterface(((SequentialDeclaration) ast).D1, library);
+      elaborateInterface(((SequentialDeclaration) ast).D2, library);
+    } else if (ast instanceof ProcDeclaration) {
+      ast.entity = new ExternalRoutine(Machine.closureSize, library,
+              ((ProcDeclaration) ast).I.spelling);
+    } else if (ast instanceof FuncDeclaration) {
+      ast.entity = new ExternalRoutine(Machine.closureSize, library,
+              ((FuncDeclaration) ast).I.spelling);
+    } else {
+      // types and constants, which take no storage
+      ast.visit(this, new Frame (0, 0));
+    }
+  }
+
   // </editor-fold>
 
   // <editor-fold defaultstate="collapsed" desc="Standard Environment">
@@ -982,25 +1042,60 @@ public final class Encoder implements Visitor {
   // Saves the object program in the named file.
 
   public void saveObjectProgram(String objectName) {
-    FileOutputStream objectFile;
-    DataOutputStream objectStream;
-
-    int addr;
+    ObjectFile object = new ObjectFile(new CodeImage(Machine.code, nextInstrAddr));
+    for (int index = 0; index < routineNames.size(); index++)
+      object.addEntryPoint(routineNames.get(index), routineAddresses.get(index));
+    for (int addr = Machine.CB; addr < nextInstrAddr; addr++)
+      object.addLine(addr, instrLines[addr]);
+    if (libraryAST != null) {
+      InterfaceWriter writer = new InterfaceWriter();
+      exportDeclarations(libraryAST, object, writer);
+      object.setInterface(writer.toString());
+      for (int addr = Machine.CB; addr < nextInstrAddr; addr++) {
+        Instruction instr = Machine.code[addr];
+        if ((instr.r == Machine.CBr) && ((instr.op == Machine.LOADAop)
+                || (instr.op == Machine.CALLop) || (instr.op == Machine.JUMPop)
+                || (instr.op == Machine.JUMPIFop)))
+          object.addRelocation(addr);
+      }
+    }
+    for (int index = 0; index < libraryPaths.size(); index++)
+      object.addLibrary(libraryPaths.get(index), libraryChecksums.get(index));
+    for (Map.Entry<Integer, ExternalRoutine> entry : imports.entrySet())
+      object.addImport(entry.getKey(), entry.getValue().library, entry.getValue().name);
 
     try {
-      objectFile = new FileOutputStream (objectName);
-      objectStream = new DataOutputStream (objectFile);
-
-      for (addr = Machine.CB; addr < nextInstrAddr; addr++)
-        Machine.code[addr].write(objectStream);
-      objectFile.close();
-    } catch (FileNotFoundException s) {
-      System.err.println ("Error opening object file: " + s);
+      object.write(Paths.get(objectName));
     } catch (IOException s) {
       System.err.println ("Error writing object file: " + s);
     }
   }
 
+  // Records the routines, types and literal constants a library exports:
+  // all its declarations but the first part of a local declaration.
+  private void exportDeclarations (Declaration ast, ObjectFile object, InterfaceWriter writer) {
+    if (ast instanceof SequentialDeclaration) {
+      exportDeclarations(((SequentialDeclaration) ast).D1, object, writer);
+      exportDeclarations(((SequentialDeclaration) ast).D2, object, writer);
+    } else if (ast instanceof LocalDeclaration) {
+      exportDeclarations(((LocalDeclaration) ast).dAST2, object, writer);
+    } else if (ast instanceof RecursiveDeclaration) {
+      exportDeclarations(((RecursiveDeclaration) ast).D, object, writer);
+    } else if (ast instanceof ProcDeclaration) {
+      ProcDeclaration decl = (ProcDeclaration) ast;
+      writer.writeProc(decl);
+      object.addExport(decl.I.spelling, ((KnownRoutine) decl.entity).address.displacement);
+    } else if (ast instanceof FuncDeclaration) {
+      FuncDeclaration decl = (FuncDeclaration) ast;
+      writer.writeFunc(decl);
+      object.addExport(decl.I.spelling, ((KnownRoutine) decl.entity).address.displacement);
+    } else if (ast instanceof TypeDeclaration) {
+      writer.writeType((TypeDeclaration) ast);
+    } else if ((ast instanceof ConstDeclaration) && (ast.entity instanceof KnownValue)) {
+      writer.writeConst((ConstDeclaration) ast);
+    }
+  }
+
   boolean tableDetailsReqd;
 
   public static void writeTableDetails(AST ast) {
@@ -1014,6 +1109,36 @@ public final class Encoder implements Visitor {
 
   private int nextInstrAddr;
 
+  // The source line of each instruction, and the name and address of each
+  // routine, kept in the object file for debuggers and linkers.
+  private int[] instrLines = new int[Machine.code.length];
+  private int currentLine;
+  private final ArrayList<String> routineNames = new ArrayList<>();
+  private final ArrayList<Integer> routineAddresses = new ArrayList<>();
+
+  // The declarations of the library being compiled, or null for a program.
+  private Declaration libraryAST;
+  // The libraries the program uses, and the instructions that refer to
+  // their routines, by address. Recursive declarations are encoded twice,
+  // so the same address may be recorded again.
+  private final ArrayList<String> libraryPaths = new ArrayList<>();
+  private final ArrayList<Integer> libraryChecksums = new ArrayList<>();
+  private final TreeMap<Integer, ExternalRoutine> imports = new TreeMap<>();
+
+  // Attributes the instructions emitted from now on to the first line of
+  // the given phrase.
+  private void markLine (AST ast) {
+    if (ast.position != null)
+      currentLine = ast.position.start;
+  }
+
+  // Records that the routine of the given name starts at the next
+  // instruction.
+  private void addEntryPoint (String name) {
+    routineNames.add(name);
+    routineAddresses.add(nextInstrAddr);
+  }
+
   // Appends an instruction, with the given fields, to the object code.
   private void emit (int op, int n, int r, int d) {
     Instruction nextInstr = new Instruction();
@@ -1028,11 +1153,26 @@ public final class Encoder implements Visitor {
     if (nextInstrAddr == Machine.PB)
       reporter.reportRestriction("too many instructions for code segment");
     else {
+      if (nextInstrAddr == Machine.code.length) {
+        // grow the code store
+        int length = Math.min(2 * Machine.code.length, Machine.PB);
+        Machine.code = Arrays.copyOf(Machine.code, length);
+        instrLines = Arrays.copyOf(instrLines, length);
+      }
       Machine.code[nextInstrAddr] = nextInstr;
+      instrLines[nextInstrAddr] = currentLine;
       nextInstrAddr = nextInstrAddr + 1;
     }
   }
 
+  // Appends an instruction whose operand is the code address of a known
+  // routine, recording it for the linker if the routine is in a library.
+  private void emitRoutineAddress (int op, int n, KnownRoutine routine) {
+    if (routine instanceof ExternalRoutine)
+      imports.put(nextInstrAddr, (ExternalRoutine) routine);
+    emit(op, n, Machine.CBr, routine.address.displacement);
+  }
+
   // Patches the d-field of the instruction at address addr.
   private void patchD (int addr, int d) {
     Machine.code[addr].d = d;
@@ -0,0 +1,17 @@
+package Triangle.CodeGenerator;
+
+// A routine of a compiled library. Its address is 0 until the program is
+// linked with the library, which adds the routine's address to every
+// instruction that refers to it.
+public class ExternalRoutine extends KnownRoutine {
+
+  public ExternalRoutine (int size, int library, String name) {
+    super (size, 0, 0);
+    this.library = library;
+    this.name = name;
+  }
+
+  public int library;
+  public String name;
+
+}
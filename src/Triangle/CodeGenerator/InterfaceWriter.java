@@ -0,0 +1,108 @@
+package Triangle.CodeGenerator;
+
+import Triangle.AbstractSyntaxTrees.*;
+
+// Writes the declarations a library exports as Triangle text, which the
+// parser reads back as an interface when a program uses the library.
+// Procedures and functions are written without their bodies. Types are
+// written as the structures they denote, so that an interface never refers
+// to a type the library does not export.
+final class InterfaceWriter {
+
+  private final StringBuilder text = new StringBuilder();
+
+  private void separate () {
+    if (text.length() > 0)
+      text.append(";\n");
+  }
+
+  void writeProc (ProcDeclaration ast) {
+    separate();
+    text.append("proc ").append(ast.I.spelling);
+    writeFormals(ast.FPS);
+  }
+
+  void writeFunc (FuncDeclaration ast) {
+    separate();
+    text.append("func ").append(ast.I.spelling);
+    writeFormals(ast.FPS);
+    text.append(" : ");
+    writeType(ast.T);
+  }
+
+  void writeType (TypeDeclaration ast) {
+    separate();
+    text.append("type ").append(ast.I.spelling).append(" ~ ");
+    writeType(ast.T);
+  }
+
+  // Only constants whose values are literals can be exported.
+  void writeConst (ConstDeclaration ast) {
+    separate();
+    text.append("const ").append(ast.I.spelling).append(" ~ ");
+    if (ast.E instanceof CharacterExpression)
+      text.append(((CharacterExpression) ast.E).CL.spelling);
+    else
+      text.append(((IntegerExpression) ast.E).IL.spelling);
+  }
+
+  private void writeFormals (FormalParameterSequence fps) {
+    text.append(" (");
+    while (fps instanceof MultipleFormalParameterSequence) {
+      writeFormal(((MultipleFormalParameterSequence) fps).FP);
+      text.append(", ");
+      fps = ((MultipleFormalParameterSequence) fps).FPS;
+    }
+    if (fps instanceof SingleFormalParameterSequence)
+      writeFormal(((SingleFormalParameterSequence) fps).FP);
+    text.append(")");
+  }
+
+  private void writeFormal (FormalParameter fp) {
+    if (fp instanceof ConstFormalParameter) {
+      text.append(((ConstFormalParameter) fp).I.spelling).append(" : ");
+      writeType(((ConstFormalParameter) fp).T);
+    } else if (fp instanceof VarFormalParameter) {
+      text.append("var ").append(((VarFormalParameter) fp).I.spelling).append(" : ");
+      writeType(((VarFormalParameter) fp).T);
+    } else if (fp instanceof ProcFormalParameter) {
+      text.append("proc ").append(((ProcFormalParameter) fp).I.spelling);
+      writeFormals(((ProcFormalParameter) fp).FPS);
+    } else if (fp instanceof FuncFormalParameter) {
+      text.append("func ").append(((FuncFormalParameter) fp).I.spelling);
+      writeFormals(((FuncFormalParameter) fp).FPS);
+      text.append(" : ");
+      writeType(((FuncFormalParameter) fp).T);
+    }
+  }
+
+  private void writeType (TypeDenoter type) {
+    if (type instanceof IntTypeDenoter)
+      text.append("Integer");
+    else if (type instanceof CharTypeDenoter)
+      text.append("Char");
+    else if (type instanceof BoolTypeDenoter)
+      text.append("Boolean");
+    else if (type instanceof ArrayTypeDenoter) {
+      text.append("array ").append(((ArrayTypeDenoter) type).IL.spelling).append(" of ");
+      writeType(((ArrayTypeDenoter) type).T);
+    } else if (type instanceof RecordTypeDenoter) {
+      text.append("record ");
+      FieldTypeDenoter ft = ((RecordTypeDenoter) type).FT;
+      while (ft instanceof MultipleFieldTypeDenoter) {
+        text.append(((MultipleFieldTypeDenoter) ft).I.spelling).append(" : ");
+        writeType(((MultipleFieldTypeDenoter) ft).T);
+        text.append(", ");
+        ft = ((MultipleFieldTypeDenoter) ft).FT;
+      }
+      text.append(((SingleFieldTypeDenoter) ft).I.spelling).append(" : ");
+      writeType(((SingleFieldTypeDenoter) ft).T);
+      text.append(" end");
+    }
+  }
+
+  @Override
+  public String toString () {
+    return text.toString();
+  }
+}
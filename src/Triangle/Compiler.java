@@ -14,12 +14,23 @@
 
 package Triangle;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import TAM.ObjectFile;
+import Triangle.AbstractSyntaxTrees.Declaration;
 import Triangle.AbstractSyntaxTrees.Program;
 import Triangle.CodeGenerator.Encoder;
 import Triangle.ContextualAnalyzer.Checker;
 import Triangle.SyntacticAnalyzer.Parser;
 import Triangle.SyntacticAnalyzer.Scanner;
 import Triangle.SyntacticAnalyzer.SourceFile;
+import Triangle.SyntacticAnalyzer.SourcePosition;
 import Triangle.TreeDrawer.Drawer;
 
 /**
@@ -44,6 +55,9 @@ public class Compiler {
     /** The AST representing the source program. */
     private static Program theAST;
 
+    /** The AST representing the source library, when compiling one. */
+    private static Declaration libraryAST;
+
     /**
      * Compile the source program to TAM machine code.
      *
@@ -61,6 +75,33 @@ public class Compiler {
      */
     static boolean compileProgram (String sourceName, String objectName,
                                    boolean showingAST, boolean showingTable) {
+        return compileProgram(sourceName, objectName, false, new ArrayList<>(),
+                              showingAST, showingTable);
+    }
+
+    /**
+     * Compile the source program, or library, to TAM machine code.
+     *
+     * @param	sourceName	the name of the file containing the
+     *				source program or library.
+     * @param	objectName	the name of the file containing the
+     *				object program or library.
+     * @param	compilingLibrary	true iff the source is a library: a
+     *				sequence of declarations whose routines are
+     *				compiled to be linked into programs.
+     * @param	libraryNames	the names of the compiled libraries the
+     *				program uses, which are linked in when it is
+     *				loaded.
+     * @param	showingAST	true iff the AST is to be displayed after
+     *				contextual analysis.
+     * @param	showingTable	true iff the object description details are to
+     *				be displayed during code generation.
+     * @return	true iff the source is free of compile-time errors,
+     *          otherwise false.
+     */
+    static boolean compileProgram (String sourceName, String objectName,
+                                   boolean compilingLibrary, List<String> libraryNames,
+                                   boolean showingAST, boolean showingTable) {
 
         System.out.println("********** " +
                            "Triangle Compiler (Java Version 2.1)" +
@@ -77,20 +118,36 @@ public class Compiler {
         drawer   = new Drawer();
 
         // scanner.enableDebugging();
-        theAST = parser.parseProgram();				// 1st pass
-        if (reporter.numErrors == 0) {
-            //if (showingAST) {
-            //    drawer.draw(theAST);
-            //}
-
-            System.out.println ("Contextual Analysis ...");
-            checker.check(theAST);				// 2nd pass
-            if (showingAST) {
-                drawer.draw(theAST);
+        if (compilingLibrary) {
+            libraryAST = parser.parseLibrary();			// 1st pass
+            if (reporter.numErrors == 0) {
+                System.out.println ("Contextual Analysis ...");
+                checker.checkLibrary(libraryAST);		// 2nd pass
+                if (reporter.numErrors == 0) {
+                    System.out.println("Code Generation ...");
+                    encoder.encodeLibrary(libraryAST, showingTable);	// 3rd pass
+                }
+            }
+        } else {
+            theAST = parser.parseProgram();			// 1st pass
+            if ((reporter.numErrors == 0) && !libraryNames.isEmpty()) {
+                System.out.println ("Reading Libraries ...");
+                readLibraries(libraryNames, objectName);
             }
             if (reporter.numErrors == 0) {
-                System.out.println("Code Generation ...");
-                encoder.encodeRun(theAST, showingTable);	// 3rd pass
+                //if (showingAST) {
+                //    drawer.draw(theAST);
+                //}
+
+                System.out.println ("Contextual Analysis ...");
+                checker.check(theAST);				// 2nd pass
+                if (showingAST) {
+                    drawer.draw(theAST);
+                }
+                if (reporter.numErrors == 0) {
+                    System.out.println("Code Generation ...");
+                    encoder.encodeRun(theAST, showingTable);	// 3rd pass
+                }
             }
         }
 
@@ -104,21 +161,87 @@ public class Compiler {
         return successful;
     }
 
+    /**
+     * Declares the routines, types and constants exported by the named
+     * libraries, from the interfaces in their object files, to the checker
+     * and the encoder of the program.
+     *
+     * @param	libraryNames	the names of the library object files.
+     * @param	objectName	the name of the object program, whose
+     *				directory the library names are recorded
+     *				relative to.
+     */
+    private static void readLibraries (List<String> libraryNames, String objectName) {
+        Path objectDirectory = Paths.get(objectName).toAbsolutePath().getParent();
+        List<Path> read = new ArrayList<>();
+        for (String libraryName : libraryNames) {
+            Path libraryPath = Paths.get(libraryName).toAbsolutePath().normalize();
+            if (read.contains(libraryPath)) {
+                continue;
+            }
+            read.add(libraryPath);
+            ObjectFile library;
+            try {
+                library = ObjectFile.read(libraryPath);
+            } catch (IOException s) {
+                reporter.reportError("can't read library \"%\"", libraryName, new SourcePosition());
+                continue;
+            }
+            if (!library.isLibrary()) {
+                reporter.reportError("\"%\" is not a library", libraryName, new SourcePosition());
+                continue;
+            }
+            SourceFile source = new SourceFile(new ByteArrayInputStream(
+                    library.getInterface().getBytes(StandardCharsets.UTF_8)));
+            Declaration interfaceAST = new Parser(new Scanner(source), reporter).parseInterface();
+            if (interfaceAST != null) {
+                checker.declareLibrary(interfaceAST);
+                encoder.elaborateLibrary(interfaceAST,
+                        objectDirectory.relativize(libraryPath).toString(),
+                        library.getInterfaceChecksum());
+            }
+        }
+    }
+
     /**
      * Triangle compiler main program.
      *
-     * @param	args	the only command-line argument to the program specifies
-     *                  the source filename.
-     * @return 
+     * @param	args	the command-line arguments: the source filename,
+     *			after any of the options <code>-library</code>, to
+     *			compile a library, <code>-link=library</code>, once
+     *			for each library the program uses, and
+     *			<code>-object=filename</code>, to name the object
+     *			file other than obj.tam. A library is written by
+     *			default to the source filename with .tam in place of
+     *			.tri, so that it does not replace a program's obj.tam.
      */
     public static void main(String[] args) {
 
-        if (args.length != 1) {
-            System.out.println("Usage: tc filename");
+        String sourceName = null;
+        boolean compilingLibrary = false, namedObject = false, usage = false;
+        List<String> libraryNames = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("-library")) {
+                compilingLibrary = true;
+            } else if (arg.startsWith("-link=")) {
+                libraryNames.add(arg.substring(6));
+            } else if (arg.startsWith("-object=")) {
+                objectName = arg.substring(8);
+                namedObject = true;
+            } else {
+                usage = usage || (sourceName != null);
+                sourceName = arg;
+            }
+        }
+        if (usage || (sourceName == null) || (compilingLibrary && !libraryNames.isEmpty())) {
+            System.out.println("Usage: tc [-library | -link=library ...] [-object=filename] filename");
             System.exit(1);
         }
+        if (compilingLibrary && !namedObject) {
+            objectName = (sourceName.endsWith(".tri")
+                    ? sourceName.substring(0, sourceName.length() - 4) : sourceName) + ".tam";
+        }
 
-        String sourceName = args[0];
-        compileProgram(sourceName, objectName, false, false);
+        compileProgram(sourceName, objectName, compilingLibrary, libraryNames, false, false);
     }
 }
@@ -941,6 +941,46 @@ public final class Checker implements Visitor {
         ast.visit(this, null);
     }
 
+    // Checks the declarations of a library, in a scope of their own, as if
+    // they were declared by a let command.
+    public void checkLibrary(Declaration ast) {
+        idTable.openScope();
+        ast.visit(this, null);
+    }
+
+    // Declares what a compiled library exports, from its interface, before
+    // the program that uses it is checked. All libraries share one scope
+    // between the standard environment and the program. As for the
+    // standard routines, only the headings of procedures and functions are
+    // checked.
+    public void declareLibrary(Declaration ast) {
+        if (!libraryScopeOpen) {
+            idTable.openScope();
+            libraryScopeOpen = true;
+        }
+        declareInterface(ast);
+    }
+
+    private void declareInterface(Declaration ast) {
+        if (ast instanceof SequentialDeclaration) {
+            declareInterface(((SequentialDeclaration) ast).D1);
+            declareInterface(((SequentialDeclaration) ast).D2);
+        } else if (ast instanceof FuncDeclaration) {
+            FuncDeclaration func = (FuncDeclaration) ast;
+            func.T = (TypeDenoter) func.T.visit(this, null);
+            idTable.enter(func.I.spelling, func);
+            if (func.duplicated) {
+                reporter.reportError("identifier \"%\" already declared",
+                        func.I.spelling, func.position);
+            }
+            idTable.openScope();
+            func.FPS.visit(this, null);
+            idTable.closeScope();
+        } else {
+            ast.visit(this, null);
+        }
+    }
+
     /////////////////////////////////////////////////////////////////////////////
     public Checker(ErrorReporter reporter) {
         this.reporter = reporter;
@@ -949,6 +989,7 @@ public final class Checker implements Visitor {
     }
 
     private IdentificationTable idTable;
+    private boolean libraryScopeOpen;
     private static final SourcePosition DUMMYPOS = new SourcePosition();
     private final ErrorReporter reporter;
 
@@ -96,6 +96,94 @@ public class Parser {
         return programAST;
     }
 
+    // parseLibrary parses the source of a library: a sequence of
+    // declarations, with no command.
+    public Declaration parseLibrary() {
+
+        Declaration libraryAST;
+
+        previousTokenPosition.start = 0;
+        previousTokenPosition.finish = 0;
+        currentToken = lexicalAnalyser.scan();
+
+        try {
+            libraryAST = parseDeclaration();
+            if (currentToken.kind != Token.EOT) {
+                syntacticError("\"%\" not expected after end of library",
+                        currentToken.spelling);
+            }
+        } catch (SyntaxError s) {
+            return null;
+        }
+        return libraryAST;
+    }
+
+    // parseInterface parses the interface of a compiled library: the
+    // declarations it exports, where procedures and functions have no body.
+    public Declaration parseInterface() {
+
+        Declaration interfaceAST;
+
+        previousTokenPosition.start = 0;
+        previousTokenPosition.finish = 0;
+        currentToken = lexicalAnalyser.scan();
+
+        try {
+            SourcePosition interfacePos = new SourcePosition();
+            start(interfacePos);
+            interfaceAST = parseInterfaceDeclaration();
+            while (currentToken.kind == Token.SEMICOLON) {
+                acceptIt();
+                Declaration d2AST = parseInterfaceDeclaration();
+                finish(interfacePos);
+                interfaceAST = new SequentialDeclaration(interfaceAST, d2AST,
+                        interfacePos);
+            }
+            if (currentToken.kind != Token.EOT) {
+                syntacticError("\"%\" not expected after end of interface",
+                        currentToken.spelling);
+            }
+        } catch (SyntaxError s) {
+            return null;
+        }
+        return interfaceAST;
+    }
+
+    private Declaration parseInterfaceDeclaration() throws SyntaxError {
+        Declaration declarationAST;
+
+        SourcePosition declarationPos = new SourcePosition();
+        start(declarationPos);
+        switch (currentToken.kind) {
+            case Token.PROC ->  {
+                acceptIt();
+                Identifier iAST = parseIdentifier();
+                accept(Token.LPAREN);
+                FormalParameterSequence fpsAST = parseFormalParameterSequence();
+                accept(Token.RPAREN);
+                finish(declarationPos);
+                declarationAST = new ProcDeclaration(iAST, fpsAST,
+                        new EmptyCommand(declarationPos), declarationPos);
+            }
+            case Token.FUNC ->  {
+                acceptIt();
+                Identifier iAST = parseIdentifier();
+                accept(Token.LPAREN);
+                FormalParameterSequence fpsAST = parseFormalParameterSequence();
+                accept(Token.RPAREN);
+                accept(Token.COLON);
+                TypeDenoter tAST = parseTypeDenoter();
+                finish(declarationPos);
+                declarationAST = new FuncDeclaration(iAST, fpsAST, tAST,
+                        new EmptyExpression(declarationPos), declarationPos);
+            }
+            default -> {
+                declarationAST = parseSingleDeclaration();
+            }
+        }
+        return declarationAST;
+    }
+
     //</editor-fold>
     
     //<editor-fold defaultstate="collapsed" desc="Literals">
@@ -21,7 +21,7 @@ public class SourceFile {
   public static final char EOT = '\u0000';
 
   java.io.File sourceFile;
-  java.io.FileInputStream source;
+  java.io.InputStream source;
   int currentLine;
 
   public SourceFile(String filename) {
@@ -37,6 +37,13 @@ public class SourceFile {
     }
   }
 
+  // Reads the source from a stream, such as the interface of a library.
+  public SourceFile(java.io.InputStream stream) {
+    sourceFile = null;
+    source = stream;
+    currentLine = 1;
+  }
+
   char getSource() {
     try {
       int c = source.read();